@@ -16,24 +16,21 @@
 package com.github.brandtg.discovery;
 
 import io.dropwizard.lifecycle.Managed;
-import org.apache.helix.HelixAdmin;
-import org.apache.helix.HelixRole;
-import org.apache.helix.LiveInstanceChangeListener;
-import org.apache.helix.NotificationContext;
-import org.apache.helix.api.id.ClusterId;
-import org.apache.helix.api.id.SpectatorId;
-import org.apache.helix.manager.zk.ZkHelixConnection;
-import org.apache.helix.manager.zk.ZkHelixRoleDefaultImpl;
-import org.apache.helix.model.InstanceConfig;
-import org.apache.helix.model.LiveInstance;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -42,59 +39,278 @@ public class HelixServiceDiscoverer implements Managed {
   private static final Random RANDOM = new Random();
 
   private final AtomicBoolean isStarted;
-  private final String zkAddress;
-  private final String clusterName;
-  private final ZkHelixConnection helixConnection;
+  private final ServiceRegistry serviceRegistry;
+  private final boolean ownsServiceRegistry;
+  private final ServiceRegistryListener listener;
+  private final HelixServiceSubsetter subsetter;
+  private final double minEnabledFraction;
+  private final long resyncGracePeriodMillis;
+  private final double maxRemovedFraction;
   private final AtomicReference<List<InetSocketAddress>> services;
+  private final Map<String, ServiceInstance> retainedInstances;
+  private List<ServiceInstance> liveInstances;
+  private List<ServiceInstance> servedInstances;
+  private boolean isPanicking;
+  private long resyncUntilMillis;
+  private ScheduledExecutorService resyncExecutor;
 
   public HelixServiceDiscoverer(String zkAddress, String clusterName) {
+    this(new HelixServiceRegistry(zkAddress, clusterName), null, new HelixServiceDiscoveryConfiguration(), true);
+  }
+
+  /**
+   * Creates a discoverer that only sees a deterministic subset of the live instances.
+   *
+   * <p>Each client should use a distinct, stable {@code clientKey} (e.g. its own host and port),
+   * so that clients spread over the cluster while each keeps the same backends across restarts.
+   *
+   * @param clientKey  A stable identifier for this client
+   * @param subsetSize The maximum number of instances this client will see
+   */
+  public HelixServiceDiscoverer(String zkAddress, String clusterName, String clientKey, int subsetSize) {
+    this(new HelixServiceRegistry(zkAddress, clusterName),
+        new HelixServiceSubsetter(clientKey, subsetSize),
+        new HelixServiceDiscoveryConfiguration(),
+        true);
+  }
+
+  /**
+   * Creates a discoverer for the cluster in {@code config}, which also sets its reconnect delays
+   * after ZooKeeper session expiry.
+   */
+  public HelixServiceDiscoverer(HelixServiceDiscoveryConfiguration config) {
+    this(createServiceRegistry(config), null, config, true);
+  }
+
+  public HelixServiceDiscoverer(HelixServiceDiscoveryConfiguration config, String clientKey, int subsetSize) {
+    this(createServiceRegistry(config), new HelixServiceSubsetter(clientKey, subsetSize), config, true);
+  }
+
+  /**
+   * Creates a discoverer that sees a subset of the live instances, spread evenly over clients
+   * numbered 0 to {@code numClients - 1} (see {@link HelixServiceSubsetter}).
+   *
+   * @param clientIndex This client's number, unique among the clients of the cluster
+   * @param subsetSize  The maximum number of instances this client will see
+   */
+  public HelixServiceDiscoverer(HelixServiceDiscoveryConfiguration config, int clientIndex, int subsetSize) {
+    this(createServiceRegistry(config), new HelixServiceSubsetter(clientIndex, subsetSize), config, true);
+  }
+
+  /**
+   * Creates a discoverer that watches {@code serviceRegistry}, which the caller starts before
+   * {@link #start()} and stops after {@link #stop()}.
+   */
+  public HelixServiceDiscoverer(ServiceRegistry serviceRegistry) {
+    this(serviceRegistry, new HelixServiceDiscoveryConfiguration());
+  }
+
+  public HelixServiceDiscoverer(ServiceRegistry serviceRegistry, String clientKey, int subsetSize) {
+    this(serviceRegistry, new HelixServiceDiscoveryConfiguration(), clientKey, subsetSize);
+  }
+
+  /**
+   * Creates a discoverer with the discovery settings of {@code config} (its ZooKeeper address and
+   * cluster name are not used, since {@code serviceRegistry} is already bound to a cluster). The
+   * grace period after re-syncing is {@link HelixServiceDiscoveryConfiguration#getReconnectMaxDelayMillis()}.
+   */
+  public HelixServiceDiscoverer(ServiceRegistry serviceRegistry, HelixServiceDiscoveryConfiguration config) {
+    this(serviceRegistry, null, config, false);
+  }
+
+  public HelixServiceDiscoverer(ServiceRegistry serviceRegistry,
+                                HelixServiceDiscoveryConfiguration config,
+                                String clientKey,
+                                int subsetSize) {
+    this(serviceRegistry, new HelixServiceSubsetter(clientKey, subsetSize), config, false);
+  }
+
+  public HelixServiceDiscoverer(ServiceRegistry serviceRegistry,
+                                HelixServiceDiscoveryConfiguration config,
+                                int clientIndex,
+                                int subsetSize) {
+    this(serviceRegistry, new HelixServiceSubsetter(clientIndex, subsetSize), config, false);
+  }
+
+  private HelixServiceDiscoverer(ServiceRegistry serviceRegistry,
+                                 HelixServiceSubsetter subsetter,
+                                 HelixServiceDiscoveryConfiguration config,
+                                 boolean ownsServiceRegistry) {
     this.isStarted = new AtomicBoolean();
-    this.zkAddress = zkAddress;
-    this.clusterName = clusterName;
-    this.helixConnection = new ZkHelixConnection(zkAddress);
+    this.serviceRegistry = serviceRegistry;
+    this.ownsServiceRegistry = ownsServiceRegistry;
+    this.listener = new ServiceRegistryListener() {
+      @Override
+      public void onLiveInstancesChange(List<ServiceInstance> liveInstances, boolean resync) {
+        if (isStarted.get()) {
+          updateServices(liveInstances, resync);
+        }
+      }
+    };
+    this.subsetter = subsetter;
+    this.minEnabledFraction = config.getMinEnabledFraction();
+    // Other participants wait up to the max delay before re-registering
+    this.resyncGracePeriodMillis = config.getReconnectMaxDelayMillis();
+    this.maxRemovedFraction = config.getMaxRemovedFraction();
     this.services = new AtomicReference<>();
+    this.retainedInstances = new LinkedHashMap<>();
+  }
+
+  private static ServiceRegistry createServiceRegistry(HelixServiceDiscoveryConfiguration config) {
+    return new HelixServiceRegistry(
+        config.getZkAddress(),
+        config.getClusterName(),
+        config.getReconnectBaseDelayMillis(),
+        config.getReconnectMaxDelayMillis());
   }
 
   @Override
   public void start() throws Exception {
     if (!isStarted.getAndSet(true)) {
-      helixConnection.connect();
-
-      ClusterId clusterId = ClusterId.from(clusterName);
-      SpectatorId spectatorId = SpectatorId.from(HelixServiceDiscoverer.class.getSimpleName());
-      HelixRole spectatorRole = new ZkHelixRoleDefaultImpl(helixConnection, clusterId, spectatorId);
-
-      helixConnection.addLiveInstanceChangeListener(
-          spectatorRole,
-          new ServiceDiscoveryLiveInstanceChangeListener(),
-          clusterId);
+      resyncExecutor = Executors.newSingleThreadScheduledExecutor();
+      if (ownsServiceRegistry) {
+        serviceRegistry.start();
+      }
+      serviceRegistry.addListener(listener);
     }
   }
 
   @Override
   public void stop() throws Exception {
     if (isStarted.getAndSet(false)) {
-      helixConnection.disconnect();
-    }
-  }
-
-  private class ServiceDiscoveryLiveInstanceChangeListener implements LiveInstanceChangeListener {
-    @Override
-    public void onLiveInstanceChange(List<LiveInstance> list, NotificationContext notificationContext) {
-      List<InetSocketAddress> addresses = new ArrayList<>();
-      HelixAdmin helixAdmin = helixConnection.createClusterManagementTool();
-      for (LiveInstance liveInstance : list) {
-        InstanceConfig instanceConfig = helixAdmin.getInstanceConfig(
-            clusterName,
-            liveInstance.getInstanceName());
-        InetSocketAddress address = new InetSocketAddress(
-            instanceConfig.getHostName(),
-            Integer.valueOf(instanceConfig.getPort()));
-        addresses.add(address);
+      if (ownsServiceRegistry) {
+        serviceRegistry.stop();
+      } else {
+        serviceRegistry.removeListener(listener);
       }
+      resyncExecutor.shutdownNow();
+    }
+  }
+
+  private synchronized void updateServices(List<ServiceInstance> liveInstances, boolean resync) {
+    if (resync || isMassRemoval(liveInstances)) {
+      retainServedInstances();
+    }
+    this.liveInstances = liveInstances;
+    updateServices();
+  }
 
-      services.set(addresses);
+  /**
+   * If one update removes most of what we serve, our own session likely survived an outage that
+   * expired the other participants' sessions, and they are about to re-register.
+   */
+  private boolean isMassRemoval(List<ServiceInstance> liveInstances) {
+    if (servedInstances == null || servedInstances.isEmpty()) {
+      return false;
     }
+
+    Set<String> liveNames = new HashSet<>();
+    for (ServiceInstance instance : liveInstances) {
+      liveNames.add(instance.getInstanceName());
+    }
+
+    int removed = 0;
+    for (ServiceInstance instance : servedInstances) {
+      if (!liveNames.contains(instance.getInstanceName())) {
+        removed++;
+      }
+    }
+    return removed > maxRemovedFraction * servedInstances.size();
+  }
+
+  /**
+   * Called on the first snapshot after the registry re-established its session, or when one
+   * snapshot removes too many of the served instances.
+   *
+   * <p>Other participants' sessions have likely expired too, and they re-register over the next
+   * few seconds (see {@link HelixServiceZkConnection}). Rather than shrinking the snapshot and
+   * growing it back, keep serving the previously served instances for a grace period.
+   */
+  private synchronized void retainServedInstances() {
+    if (servedInstances != null) {
+      for (ServiceInstance instance : servedInstances) {
+        retainedInstances.put(instance.getInstanceName(), instance);
+      }
+    }
+    resyncUntilMillis = System.currentTimeMillis() + resyncGracePeriodMillis;
+    resyncExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        updateServices();
+      }
+    }, resyncGracePeriodMillis, TimeUnit.MILLISECONDS);
+    LOG.info("Re-syncing, retaining {} instances for {} ms", retainedInstances.size(), resyncGracePeriodMillis);
+  }
+
+  /**
+   * Drops disabled (e.g. draining) instances and applies subsetting.
+   *
+   * <p>If too few instances are enabled (e.g. the whole cluster is shedding load at once), it
+   * "panics" and keeps the disabled ones too: an overloaded instance is better than none, and
+   * better than sending everything to the last few enabled instances.
+   */
+  private synchronized void updateServices() {
+    if (liveInstances == null) {
+      return; // not initialized yet
+    }
+
+    // Until re-sync completes, also include instances we were serving before it
+    Map<String, ServiceInstance> candidates = new LinkedHashMap<>();
+    if (!retainedInstances.isEmpty()) {
+      if (System.currentTimeMillis() < resyncUntilMillis) {
+        candidates.putAll(retainedInstances);
+      } else {
+        retainedInstances.clear();
+      }
+    }
+    for (ServiceInstance instance : liveInstances) {
+      candidates.put(instance.getInstanceName(), instance);
+    }
+
+    // Index mode reshuffles every subset when its input changes, so it subsets all candidates and
+    // only then drops disabled ones: enabling or disabling an instance does not move other clients
+    boolean subsetFirst = subsetter != null && subsetter.getClientKey() == null;
+    if (subsetFirst) {
+      candidates.keySet().retainAll(subsetter.select(candidates.keySet()));
+    }
+
+    Map<String, ServiceInstance> enabledInstances = new LinkedHashMap<>();
+    for (ServiceInstance instance : candidates.values()) {
+      if (instance.isEnabled()) {
+        enabledInstances.put(instance.getInstanceName(), instance);
+      }
+    }
+
+    boolean panic = enabledInstances.size() < candidates.size()
+        && (enabledInstances.isEmpty() || enabledInstances.size() < minEnabledFraction * candidates.size());
+    if (panic != isPanicking) {
+      isPanicking = panic;
+      if (panic) {
+        LOG.warn("Only {} of {} instances are enabled, routing to disabled instances too",
+            enabledInstances.size(), candidates.size());
+      } else {
+        LOG.info("{} of {} instances are enabled, no longer routing to disabled instances",
+            enabledInstances.size(), candidates.size());
+      }
+    }
+    Map<String, ServiceInstance> routableInstances = panic ? candidates : enabledInstances;
+
+    // Rendezvous hashing subsets after filtering, so a disabled instance is temporarily replaced
+    List<String> instanceNames = new ArrayList<>(routableInstances.keySet());
+    if (subsetter != null && !subsetFirst) {
+      instanceNames = subsetter.select(instanceNames);
+    }
+
+    List<ServiceInstance> instances = new ArrayList<>(instanceNames.size());
+    List<InetSocketAddress> addresses = new ArrayList<>(instanceNames.size());
+    for (String instanceName : instanceNames) {
+      ServiceInstance instance = routableInstances.get(instanceName);
+      instances.add(instance);
+      addresses.add(instance.getAddress());
+    }
+
+    servedInstances = instances;
+    services.set(addresses);
   }
 
   public List<InetSocketAddress> getServices() {
@@ -21,23 +21,15 @@ import io.dropwizard.jetty.ConnectorFactory;
 import io.dropwizard.jetty.HttpConnectorFactory;
 import io.dropwizard.jetty.HttpsConnectorFactory;
 import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.lifecycle.ServerLifecycleListener;
 import io.dropwizard.server.DefaultServerFactory;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
-import org.apache.helix.HelixAdmin;
-import org.apache.helix.HelixConnection;
-import org.apache.helix.HelixParticipant;
-import org.apache.helix.api.id.ClusterId;
-import org.apache.helix.api.id.ParticipantId;
-import org.apache.helix.api.id.StateModelDefId;
-import org.apache.helix.manager.zk.ZkHelixConnection;
-import org.apache.helix.model.InstanceConfig;
+import org.eclipse.jetty.server.Server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetAddress;
-import java.util.List;
-import java.util.concurrent.atomic.AtomicReference;
 
 public abstract class HelixServiceDiscoveryBundle<T extends Configuration> implements ConfiguredBundle<T> {
   private static final Logger LOG = LoggerFactory.getLogger(HelixServiceDiscoveryBundle.class);
@@ -51,10 +43,21 @@ public abstract class HelixServiceDiscoveryBundle<T extends Configuration> imple
   public void run(final T configuration, Environment environment) throws Exception {
     final HelixServiceDiscoveryConfiguration helixConfig
         = getHelixServiceDiscoveryBundleConfiguration(configuration);
-    final HelixConnection helixConnection
-        = new ZkHelixConnection(helixConfig.getZkAddress());
-    final AtomicReference<HelixParticipant> helixParticipantReference
-        = new AtomicReference<>();
+    final ServiceRegistry serviceRegistry = createServiceRegistry(helixConfig);
+
+    // Optionally drop out of routing while overloaded
+    final HelixServiceLoadShedder loadShedder;
+    if (helixConfig.getLoadShedding() != null) {
+      loadShedder = new HelixServiceLoadShedder(helixConfig.getLoadShedding(), environment.metrics());
+      environment.lifecycle().addServerLifecycleListener(new ServerLifecycleListener() {
+        @Override
+        public void serverStarted(Server server) {
+          loadShedder.setServer(server);
+        }
+      });
+    } else {
+      loadShedder = null;
+    }
 
     environment.lifecycle().manage(new Managed() {
       @Override
@@ -63,50 +66,28 @@ public abstract class HelixServiceDiscoveryBundle<T extends Configuration> imple
         int port = getPort(configuration);
         String instanceName = String.format("%s_%d", hostName, port);
 
-        // Connect to Helix
-        helixConnection.connect();
-        HelixParticipant helixParticipant = helixConnection.createParticipant(
-            ClusterId.from(helixConfig.getClusterName()),
-            ParticipantId.from(instanceName));
-
-        // Add this node if not present to cluster
-        HelixAdmin helixAdmin = helixConnection.createClusterManagementTool();
-        List<String> nodes = helixAdmin.getInstancesInCluster(helixConfig.getClusterName());
-        if (!nodes.contains(instanceName)) {
-          InstanceConfig instanceConfig = new InstanceConfig(instanceName);
-          instanceConfig.setHostName(hostName);
-          instanceConfig.setPort(String.valueOf(port));
-          helixAdmin.addInstance(helixConfig.getClusterName(), instanceConfig);
-          LOG.info("Added instance {} to cluster {}", instanceName, helixConfig.getClusterName());
+        // Connect and register this node
+        serviceRegistry.start();
+        serviceRegistry.register(instanceName, hostName, port);
+
+        // Start load shedder
+        if (loadShedder != null) {
+          loadShedder.start(serviceRegistry, instanceName);
         }
 
-        // Register the online / offline state machine
-        helixParticipant.getStateMachineEngine().registerStateModelFactory(
-            StateModelDefId.OnlineOffline,
-            new HelixServiceDiscoveryStateTransitionHandlerFactory());
-
-        // Start participant
-        helixParticipant.start();
-        helixParticipantReference.set(helixParticipant);
-        LOG.info("Connected to {}/{} as {}",
-            helixConfig.getZkAddress(),
-            helixConfig.getClusterName(),
-            instanceName);
+        LOG.info("Registered {} in cluster {}", instanceName, helixConfig.getClusterName());
       }
 
       @Override
       public void stop() throws Exception {
-        // Stop participant
-        HelixParticipant helixParticipant = helixParticipantReference.get();
-        if (helixParticipant != null) {
-          helixParticipant.stop();
+        // Stop load shedder (re-enables the instance if it was shedding)
+        if (loadShedder != null) {
+          loadShedder.stop();
         }
 
-        // Disconnect from Helix
-        helixConnection.disconnect();
-        LOG.info("Disconnected from {}/{}",
-            helixConfig.getZkAddress(),
-            helixConfig.getClusterName());
+        // Stop participant and disconnect
+        serviceRegistry.stop();
+        LOG.info("Unregistered from cluster {}", helixConfig.getClusterName());
       }
     });
   }
@@ -114,6 +95,18 @@ public abstract class HelixServiceDiscoveryBundle<T extends Configuration> imple
   protected abstract HelixServiceDiscoveryConfiguration
   getHelixServiceDiscoveryBundleConfiguration(T configuration);
 
+  /**
+   * Creates the registry this instance registers with. Defaults to {@link HelixServiceRegistry};
+   * override to use another backend (e.g. {@link InMemoryServiceRegistry} in tests).
+   */
+  protected ServiceRegistry createServiceRegistry(HelixServiceDiscoveryConfiguration helixConfig) {
+    return new HelixServiceRegistry(
+        helixConfig.getZkAddress(),
+        helixConfig.getClusterName(),
+        helixConfig.getReconnectBaseDelayMillis(),
+        helixConfig.getReconnectMaxDelayMillis());
+  }
+
   private static int getPort(Configuration config) {
     DefaultServerFactory serverFactory = (DefaultServerFactory) config.getServerFactory();
     ConnectorFactory connectorFactory = serverFactory.getApplicationConnectors().get(0);
@@ -18,6 +18,11 @@ package com.github.brandtg.discovery;
 public class HelixServiceDiscoveryConfiguration {
   private String zkAddress;
   private String clusterName;
+  private long reconnectBaseDelayMillis = HelixServiceZkConnection.DEFAULT_BASE_DELAY_MILLIS;
+  private long reconnectMaxDelayMillis = HelixServiceZkConnection.DEFAULT_MAX_DELAY_MILLIS;
+  private double minEnabledFraction = 0.5;
+  private double maxRemovedFraction = 0.5;
+  private HelixServiceLoadSheddingConfiguration loadShedding;
 
   public HelixServiceDiscoveryConfiguration() {}
 
@@ -36,4 +41,55 @@ public class HelixServiceDiscoveryConfiguration {
   public void setClusterName(String clusterName) {
     this.clusterName = clusterName;
   }
+
+  /** The initial bound on the random delay before re-registering after ZooKeeper session expiry. */
+  public long getReconnectBaseDelayMillis() {
+    return reconnectBaseDelayMillis;
+  }
+
+  public void setReconnectBaseDelayMillis(long reconnectBaseDelayMillis) {
+    this.reconnectBaseDelayMillis = reconnectBaseDelayMillis;
+  }
+
+  /** The largest bound the re-registration delay doubles up to while sessions keep expiring. */
+  public long getReconnectMaxDelayMillis() {
+    return reconnectMaxDelayMillis;
+  }
+
+  public void setReconnectMaxDelayMillis(long reconnectMaxDelayMillis) {
+    this.reconnectMaxDelayMillis = reconnectMaxDelayMillis;
+  }
+
+  /**
+   * When fewer than this fraction of the live instances are enabled, discoverers also route to
+   * disabled ones, rather than piling all traffic onto the few that are left.
+   */
+  public double getMinEnabledFraction() {
+    return minEnabledFraction;
+  }
+
+  public void setMinEnabledFraction(double minEnabledFraction) {
+    this.minEnabledFraction = minEnabledFraction;
+  }
+
+  /**
+   * When one update removes more than this fraction of the instances a discoverer serves, it keeps
+   * serving them for {@link #getReconnectMaxDelayMillis()}, as they are likely re-registering.
+   */
+  public double getMaxRemovedFraction() {
+    return maxRemovedFraction;
+  }
+
+  public void setMaxRemovedFraction(double maxRemovedFraction) {
+    this.maxRemovedFraction = maxRemovedFraction;
+  }
+
+  /** If set, the instance disables itself in Helix while overloaded. */
+  public HelixServiceLoadSheddingConfiguration getLoadShedding() {
+    return loadShedding;
+  }
+
+  public void setLoadShedding(HelixServiceLoadSheddingConfiguration loadShedding) {
+    this.loadShedding = loadShedding;
+  }
 }
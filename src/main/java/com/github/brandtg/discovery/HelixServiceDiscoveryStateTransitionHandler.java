@@ -16,15 +16,15 @@
 package com.github.brandtg.discovery;
 
 import org.apache.helix.NotificationContext;
-import org.apache.helix.api.TransitionHandler;
 import org.apache.helix.model.Message;
+import org.apache.helix.participant.statemachine.StateModel;
 import org.apache.helix.participant.statemachine.StateModelInfo;
 import org.apache.helix.participant.statemachine.Transition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 @StateModelInfo(states = "{'OFFLINE','ONLINE'}", initialState = "OFFINE")
-public class HelixServiceDiscoveryStateTransitionHandler extends TransitionHandler {
+public class HelixServiceDiscoveryStateTransitionHandler extends StateModel {
   private static final Logger LOG = LoggerFactory.getLogger(HelixServiceDiscoveryStateTransitionHandler.class);
 
   @Transition(from = "OFFLINE", to = "ONLINE")
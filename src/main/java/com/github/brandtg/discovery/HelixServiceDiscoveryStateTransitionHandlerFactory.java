@@ -15,13 +15,12 @@
  */
 package com.github.brandtg.discovery;
 
-import org.apache.helix.api.StateTransitionHandlerFactory;
-import org.apache.helix.api.id.PartitionId;
+import org.apache.helix.participant.statemachine.StateModelFactory;
 
 public class HelixServiceDiscoveryStateTransitionHandlerFactory
-    extends StateTransitionHandlerFactory<HelixServiceDiscoveryStateTransitionHandler> {
+    extends StateModelFactory<HelixServiceDiscoveryStateTransitionHandler> {
   @Override
-  public HelixServiceDiscoveryStateTransitionHandler createStateTransitionHandler(PartitionId partitionId) {
+  public HelixServiceDiscoveryStateTransitionHandler createNewStateModel(String resourceName, String partitionKey) {
     return new HelixServiceDiscoveryStateTransitionHandler();
   }
 }
@@ -0,0 +1,276 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.discovery;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingTimeWindowReservoir;
+import com.codahale.metrics.Timer;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Disables this instance in its {@link ServiceRegistry} while the local server is saturated, and
+ * re-enables it once the server has recovered.
+ *
+ * <p>Disabled instances are dropped by {@link HelixServiceDiscoverer}, so clients stop routing
+ * to the instance while it drains. State changes are rate limited by
+ * {@link HelixServiceLoadSheddingConfiguration#getMinStateDurationMillis()}.
+ *
+ * <p>Latency and GC time are measured over sliding time windows, so neither a single long pause
+ * nor requests from minutes ago decide whether the instance is overloaded now.
+ */
+public class HelixServiceLoadShedder implements Runnable {
+  private static final Logger LOG = LoggerFactory.getLogger(HelixServiceLoadShedder.class);
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final HelixServiceLoadSheddingConfiguration config;
+  private final MetricRegistry metricRegistry;
+  private final boolean latencyWindowed;
+
+  private volatile Server server;
+  private ServiceRegistry serviceRegistry;
+  private String instanceName;
+  private ScheduledExecutorService executor;
+
+  // Guarded by this
+  private boolean shedding;
+  private long lastChangeMillis = -1;
+
+  // Only accessed from the executor thread
+  private final Deque<GcSample> gcSamples = new ArrayDeque<>();
+  private long lastRequestCount;
+
+  public HelixServiceLoadShedder(HelixServiceLoadSheddingConfiguration config, MetricRegistry metricRegistry) {
+    this.config = config;
+    this.metricRegistry = metricRegistry;
+    this.latencyWindowed = registerLatencyTimer();
+    metricRegistry.register(MetricRegistry.name(HelixServiceLoadShedder.class, "shedding"), new Gauge<Boolean>() {
+      @Override
+      public Boolean getValue() {
+        return isShedding();
+      }
+    });
+  }
+
+  /**
+   * Registers the request timer with a sliding time window reservoir, before Jetty creates it with
+   * an exponentially decaying one, which would hold on to overload samples long after they stopped.
+   */
+  private boolean registerLatencyTimer() {
+    if (config.getMaxLatencyMillis() <= 0) {
+      return false;
+    }
+    try {
+      metricRegistry.register(config.getLatencyTimerName(), new Timer(
+          new SlidingTimeWindowReservoir(config.getLatencyWindowMillis(), TimeUnit.MILLISECONDS)));
+      return true;
+    } catch (IllegalArgumentException e) {
+      LOG.warn("Timer {} already exists, its latency may not be limited to the last {} ms",
+          config.getLatencyTimerName(), config.getLatencyWindowMillis());
+      return false;
+    }
+  }
+
+  /** Sets the Jetty server whose thread pool queue depth is monitored. */
+  public void setServer(Server server) {
+    this.server = server;
+  }
+
+  public void start(ServiceRegistry serviceRegistry, String instanceName) {
+    this.serviceRegistry = serviceRegistry;
+    this.instanceName = instanceName;
+    this.executor = Executors.newSingleThreadScheduledExecutor();
+    executor.scheduleWithFixedDelay(
+        this, config.getCheckIntervalMillis(), config.getCheckIntervalMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  public void stop() throws Exception {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor.awaitTermination(config.getCheckIntervalMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    // Do not leave the instance disabled when we go away
+    synchronized (this) {
+      if (shedding) {
+        serviceRegistry.setEnabled(instanceName, true);
+        shedding = false;
+        LOG.info("Re-enabled {} on shutdown", instanceName);
+      }
+    }
+  }
+
+  public synchronized boolean isShedding() {
+    return shedding;
+  }
+
+  @Override
+  public void run() {
+    try {
+      long nowMillis = System.currentTimeMillis();
+      int queueSize = getQueueSize();
+      double latencyMillis = getLatencyMillis();
+      double gcTimeRatio = getGcTimeRatio(nowMillis, getGcTimeMillis());
+
+      synchronized (this) {
+        long previousChangeMillis = lastChangeMillis;
+        if (update(queueSize, latencyMillis, gcTimeRatio, nowMillis)) {
+          try {
+            serviceRegistry.setEnabled(instanceName, !shedding);
+          } catch (Exception e) {
+            // Roll back so we retry on the next check
+            shedding = !shedding;
+            lastChangeMillis = previousChangeMillis;
+            throw e;
+          }
+
+          if (shedding) {
+            LOG.warn("Disabled {} (queueSize={}, p99LatencyMillis={}, gcTimeRatio={})",
+                instanceName, queueSize, latencyMillis, gcTimeRatio);
+          } else {
+            LOG.info("Re-enabled {} (queueSize={}, p99LatencyMillis={}, gcTimeRatio={})",
+                instanceName, queueSize, latencyMillis, gcTimeRatio);
+          }
+        }
+      }
+    } catch (Exception e) {
+      // Never propagate, or the executor will cancel future checks
+      LOG.error("Error checking load for {}", instanceName, e);
+    }
+  }
+
+  /**
+   * Applies one set of samples to the shedding state.
+   *
+   * @return true if {@link #isShedding()} changed
+   */
+  synchronized boolean update(int queueSize, double latencyMillis, double gcTimeRatio, long nowMillis) {
+    if (lastChangeMillis >= 0 && nowMillis - lastChangeMillis < config.getMinStateDurationMillis()) {
+      return false;
+    }
+
+    boolean changed;
+    if (shedding) {
+      changed = isBelow(queueSize, config.getMaxQueueSize(), config.getRecoverQueueSize())
+          && isBelow(latencyMillis, config.getMaxLatencyMillis(), config.getRecoverLatencyMillis())
+          && isBelow(gcTimeRatio, config.getMaxGcTimeRatio(), config.getRecoverGcTimeRatio());
+    } else {
+      changed = isAbove(queueSize, config.getMaxQueueSize())
+          || isAbove(latencyMillis, config.getMaxLatencyMillis())
+          || isAbove(gcTimeRatio, config.getMaxGcTimeRatio());
+    }
+
+    if (changed) {
+      shedding = !shedding;
+      lastChangeMillis = nowMillis;
+    }
+    return changed;
+  }
+
+  private static boolean isAbove(double value, double maxValue) {
+    return maxValue > 0 && value > maxValue;
+  }
+
+  private static boolean isBelow(double value, double maxValue, double recoverValue) {
+    return maxValue <= 0 || value <= recoverValue;
+  }
+
+  private int getQueueSize() {
+    Server server = this.server;
+    if (server != null) {
+      ThreadPool threadPool = server.getThreadPool();
+      if (threadPool instanceof QueuedThreadPool) {
+        return ((QueuedThreadPool) threadPool).getQueueSize();
+      }
+    }
+    return 0;
+  }
+
+  private double getLatencyMillis() {
+    Timer timer = metricRegistry.getTimers().get(config.getLatencyTimerName());
+    if (timer == null) {
+      return 0;
+    }
+
+    // Another reservoir may keep old samples while no requests arrive (e.g. while disabled)
+    if (!latencyWindowed) {
+      long requestCount = timer.getCount();
+      if (requestCount == lastRequestCount) {
+        return 0;
+      }
+      lastRequestCount = requestCount;
+    }
+    return timer.getSnapshot().get99thPercentile() / NANOS_PER_MILLI;
+  }
+
+  private static long getGcTimeMillis() {
+    long gcTimeMillis = 0;
+    for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      long collectionTime = gcBean.getCollectionTime();
+      if (collectionTime > 0) {
+        gcTimeMillis += collectionTime;
+      }
+    }
+    return gcTimeMillis;
+  }
+
+  /**
+   * The fraction of the last {@link HelixServiceLoadSheddingConfiguration#getGcWindowMillis()}
+   * spent in GC, given the total GC time so far. Until a full window has passed, the GC time is
+   * still spread over a full window, so one pause right after startup does not count for more.
+   */
+  double getGcTimeRatio(long nowMillis, long gcTimeMillis) {
+    // The baseline is the newest sample at or before the start of the window
+    long windowStartMillis = nowMillis - config.getGcWindowMillis();
+    GcSample baseline = gcSamples.pollFirst();
+    while (!gcSamples.isEmpty() && gcSamples.peekFirst().timeMillis <= windowStartMillis) {
+      baseline = gcSamples.pollFirst();
+    }
+
+    double ratio = 0;
+    if (baseline != null) {
+      gcSamples.addFirst(baseline);
+      long elapsedMillis = Math.max(nowMillis - baseline.timeMillis, config.getGcWindowMillis());
+      if (elapsedMillis > 0) {
+        ratio = (double) (gcTimeMillis - baseline.gcTimeMillis) / elapsedMillis;
+      }
+    }
+    gcSamples.addLast(new GcSample(nowMillis, gcTimeMillis));
+    return ratio;
+  }
+
+  private static class GcSample {
+    private final long timeMillis;
+    private final long gcTimeMillis;
+
+    GcSample(long timeMillis, long gcTimeMillis) {
+      this.timeMillis = timeMillis;
+      this.gcTimeMillis = gcTimeMillis;
+    }
+  }
+}
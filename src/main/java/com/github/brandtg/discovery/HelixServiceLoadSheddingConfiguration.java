@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.discovery;
+
+/**
+ * Thresholds for {@link HelixServiceLoadShedder}.
+ *
+ * <p>An instance starts shedding when any signal exceeds its {@code max*} threshold, and recovers
+ * once every signal is at or below its {@code recover*} threshold. A threshold of zero or less
+ * disables that signal.
+ */
+public class HelixServiceLoadSheddingConfiguration {
+  private long checkIntervalMillis = 1000;
+  private long minStateDurationMillis = 30000;
+  private int maxQueueSize = 200;
+  private int recoverQueueSize = 20;
+  private String latencyTimerName = "io.dropwizard.jetty.MutableServletContextHandler.requests";
+  private long maxLatencyMillis = 0;
+  private long recoverLatencyMillis = 0;
+  private long latencyWindowMillis = 10000;
+  private double maxGcTimeRatio = 0.25;
+  private double recoverGcTimeRatio = 0.05;
+  private long gcWindowMillis = 10000;
+
+  public HelixServiceLoadSheddingConfiguration() {}
+
+  public long getCheckIntervalMillis() {
+    return checkIntervalMillis;
+  }
+
+  public void setCheckIntervalMillis(long checkIntervalMillis) {
+    this.checkIntervalMillis = checkIntervalMillis;
+  }
+
+  /** The minimum time between enabling and disabling the instance, to prevent flapping. */
+  public long getMinStateDurationMillis() {
+    return minStateDurationMillis;
+  }
+
+  public void setMinStateDurationMillis(long minStateDurationMillis) {
+    this.minStateDurationMillis = minStateDurationMillis;
+  }
+
+  /** Jetty thread pool queue depth. */
+  public int getMaxQueueSize() {
+    return maxQueueSize;
+  }
+
+  public void setMaxQueueSize(int maxQueueSize) {
+    this.maxQueueSize = maxQueueSize;
+  }
+
+  public int getRecoverQueueSize() {
+    return recoverQueueSize;
+  }
+
+  public void setRecoverQueueSize(int recoverQueueSize) {
+    this.recoverQueueSize = recoverQueueSize;
+  }
+
+  /** The request timer whose 99th percentile is checked against the latency thresholds. */
+  public String getLatencyTimerName() {
+    return latencyTimerName;
+  }
+
+  public void setLatencyTimerName(String latencyTimerName) {
+    this.latencyTimerName = latencyTimerName;
+  }
+
+  public long getMaxLatencyMillis() {
+    return maxLatencyMillis;
+  }
+
+  public void setMaxLatencyMillis(long maxLatencyMillis) {
+    this.maxLatencyMillis = maxLatencyMillis;
+  }
+
+  public long getRecoverLatencyMillis() {
+    return recoverLatencyMillis;
+  }
+
+  public void setRecoverLatencyMillis(long recoverLatencyMillis) {
+    this.recoverLatencyMillis = recoverLatencyMillis;
+  }
+
+  /** The time window of requests the latency percentile is taken over. */
+  public long getLatencyWindowMillis() {
+    return latencyWindowMillis;
+  }
+
+  public void setLatencyWindowMillis(long latencyWindowMillis) {
+    this.latencyWindowMillis = latencyWindowMillis;
+  }
+
+  /** Fraction of wall-clock time spent in GC over the last {@link #getGcWindowMillis()}. */
+  public double getMaxGcTimeRatio() {
+    return maxGcTimeRatio;
+  }
+
+  public void setMaxGcTimeRatio(double maxGcTimeRatio) {
+    this.maxGcTimeRatio = maxGcTimeRatio;
+  }
+
+  public double getRecoverGcTimeRatio() {
+    return recoverGcTimeRatio;
+  }
+
+  public void setRecoverGcTimeRatio(double recoverGcTimeRatio) {
+    this.recoverGcTimeRatio = recoverGcTimeRatio;
+  }
+
+  /** The time window the GC time ratio is measured over. */
+  public long getGcWindowMillis() {
+    return gcWindowMillis;
+  }
+
+  public void setGcWindowMillis(long gcWindowMillis) {
+    this.gcWindowMillis = gcWindowMillis;
+  }
+}
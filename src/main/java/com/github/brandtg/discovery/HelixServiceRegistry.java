@@ -0,0 +1,449 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.discovery;
+
+import org.I0Itec.zkclient.DataUpdater;
+import org.I0Itec.zkclient.IZkChildListener;
+import org.I0Itec.zkclient.IZkDataListener;
+import org.I0Itec.zkclient.IZkStateListener;
+import org.I0Itec.zkclient.exception.ZkNoNodeException;
+import org.apache.helix.InstanceType;
+import org.apache.helix.LiveInstanceInfoProvider;
+import org.apache.helix.ZNRecord;
+import org.apache.helix.manager.zk.ZKHelixAdmin;
+import org.apache.helix.manager.zk.ZkClient;
+import org.apache.helix.model.InstanceConfig;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link ServiceRegistry} backed by a Helix cluster.
+ *
+ * <p>Each service is a Helix cluster, and each service instance is a participant in it using the
+ * OnlineOffline state model. A participant publishes its host, port and enabled state on its
+ * (ephemeral) live instance, so listeners only need to watch live instances, and disabling an
+ * instance ends when it stops being live.
+ */
+public class HelixServiceRegistry implements ServiceRegistry {
+  private static final Logger LOG = LoggerFactory.getLogger(HelixServiceRegistry.class);
+  private static final String HOST_NAME_FIELD = "SERVICE_HOST_NAME";
+  private static final String PORT_FIELD = "SERVICE_PORT";
+  private static final String ENABLED_FIELD = "SERVICE_ENABLED";
+
+  private final String zkAddress;
+  private final String clusterName;
+  private final long reconnectBaseDelayMillis;
+  private final long reconnectMaxDelayMillis;
+  private final List<ServiceRegistryListener> listeners;
+  private final AtomicReference<List<ServiceInstance>> liveInstances;
+  private final AtomicReference<HelixServiceZkConnection> participant;
+  private final AtomicBoolean participantEnabled;
+  private final AtomicReference<HelixServiceZkConnection> spectator;
+  private final AtomicReference<LiveInstanceWatcher> liveInstanceWatcher;
+  private volatile ExecutorService listenerExecutor;
+
+  public HelixServiceRegistry(String zkAddress, String clusterName) {
+    this(zkAddress, clusterName,
+        HelixServiceZkConnection.DEFAULT_BASE_DELAY_MILLIS,
+        HelixServiceZkConnection.DEFAULT_MAX_DELAY_MILLIS);
+  }
+
+  public HelixServiceRegistry(String zkAddress,
+                              String clusterName,
+                              long reconnectBaseDelayMillis,
+                              long reconnectMaxDelayMillis) {
+    this.zkAddress = zkAddress;
+    this.clusterName = clusterName;
+    this.reconnectBaseDelayMillis = reconnectBaseDelayMillis;
+    this.reconnectMaxDelayMillis = reconnectMaxDelayMillis;
+    this.listeners = new CopyOnWriteArrayList<>();
+    this.liveInstances = new AtomicReference<>();
+    this.participant = new AtomicReference<>();
+    this.participantEnabled = new AtomicBoolean();
+    this.spectator = new AtomicReference<>();
+    this.liveInstanceWatcher = new AtomicReference<>();
+  }
+
+  @Override
+  public synchronized void start() throws Exception {
+    // Connections are opened on register / addListener
+    if (listenerExecutor == null) {
+      listenerExecutor = Executors.newSingleThreadExecutor();
+    }
+  }
+
+  @Override
+  public synchronized void stop() throws Exception {
+    HelixServiceZkConnection connection = participant.getAndSet(null);
+    if (connection != null) {
+      connection.disconnect();
+    }
+    connection = spectator.getAndSet(null);
+    if (connection != null) {
+      connection.disconnect();
+    }
+    liveInstanceWatcher.set(null);
+    if (listenerExecutor != null) {
+      listenerExecutor.shutdown();
+      listenerExecutor.awaitTermination(10, TimeUnit.SECONDS);
+      listenerExecutor = null;
+    }
+  }
+
+  @Override
+  public void register(final String instanceName,
+                       final String hostName,
+                       final int port) throws Exception {
+    HelixServiceZkConnection connection = createConnection(instanceName, InstanceType.PARTICIPANT);
+    if (!participant.compareAndSet(null, connection)) {
+      throw new IllegalStateException("An instance is already registered: " + participant.get().getInstanceName());
+    }
+    participantEnabled.set(true);
+
+    // Published on the live instance, including when it is re-created on a new session
+    connection.setLiveInstanceInfoProvider(new LiveInstanceInfoProvider() {
+      @Override
+      public ZNRecord getAdditionalLiveInstanceInfo() {
+        ZNRecord record = new ZNRecord(instanceName);
+        record.setSimpleField(HOST_NAME_FIELD, hostName);
+        record.setSimpleField(PORT_FIELD, String.valueOf(port));
+        record.setSimpleField(ENABLED_FIELD, String.valueOf(participantEnabled.get()));
+        return record;
+      }
+    });
+
+    try {
+      // Add this node if not present to cluster
+      ZKHelixAdmin helixAdmin = new ZKHelixAdmin(zkAddress);
+      try {
+        List<String> nodes = helixAdmin.getInstancesInCluster(clusterName);
+        if (!nodes.contains(instanceName)) {
+          InstanceConfig instanceConfig = new InstanceConfig(instanceName);
+          instanceConfig.setHostName(hostName);
+          instanceConfig.setPort(String.valueOf(port));
+          helixAdmin.addInstance(clusterName, instanceConfig);
+          LOG.info("Added instance {} to cluster {}", instanceName, clusterName);
+        }
+      } finally {
+        helixAdmin.close();
+      }
+
+      // Register the online / offline state machine
+      connection.getStateMachineEngine().registerStateModelFactory(
+          "OnlineOffline",
+          new HelixServiceDiscoveryStateTransitionHandlerFactory());
+
+      // Connect as participant, which makes this instance live
+      connection.connect();
+    } catch (Exception e) {
+      // Allow registering again
+      participant.compareAndSet(connection, null);
+      if (connection.isConnected()) {
+        connection.disconnect();
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public void setEnabled(String instanceName, boolean enabled) throws Exception {
+    HelixServiceZkConnection connection = participant.get();
+    if (connection == null || !connection.getInstanceName().equals(instanceName)) {
+      throw new IllegalStateException("Instance is not registered through this registry: " + instanceName);
+    }
+    participantEnabled.set(enabled);
+
+    // Only update the live instance if it exists: creating it here would leave a bare ephemeral node
+    // (e.g. while re-registering after session expiry), and Helix publishes the flag when it creates it
+    final String enabledValue = String.valueOf(enabled);
+    String path = connection.getHelixDataAccessor().keyBuilder().liveInstance(instanceName).getPath();
+    try {
+      connection.getZkClient().updateDataSerialized(path, new DataUpdater<ZNRecord>() {
+        @Override
+        public ZNRecord update(ZNRecord record) {
+          record.setSimpleField(ENABLED_FIELD, enabledValue);
+          return record;
+        }
+      });
+    } catch (ZkNoNodeException e) {
+      LOG.info("Live instance {} does not exist, it will be created with {}={}", instanceName, ENABLED_FIELD, enabled);
+    }
+  }
+
+  @Override
+  public synchronized void addListener(final ServiceRegistryListener listener) throws Exception {
+    if (listenerExecutor == null) {
+      throw new IllegalStateException("Registry is not started");
+    }
+
+    // Deliver the current snapshot (if any) in order with other notifications
+    listenerExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        listeners.add(listener);
+        List<ServiceInstance> instances = liveInstances.get();
+        if (instances != null) {
+          listener.onLiveInstancesChange(instances, false);
+        }
+      }
+    });
+
+    if (spectator.get() == null) {
+      // First listener, so start watching the cluster (which sends the initial snapshot)
+      HelixServiceZkConnection connection = createConnection(
+          HelixServiceDiscoverer.class.getSimpleName(), InstanceType.SPECTATOR);
+      spectator.set(connection);
+      connection.connect();
+      LiveInstanceWatcher watcher = new LiveInstanceWatcher(connection);
+      liveInstanceWatcher.set(watcher);
+      watcher.start();
+    }
+  }
+
+  @Override
+  public synchronized void removeListener(final ServiceRegistryListener listener) throws Exception {
+    // In order with addListener, which adds on the listener thread
+    ExecutorService executor = listenerExecutor;
+    if (executor != null) {
+      executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          listeners.remove(listener);
+        }
+      }).get();
+    } else {
+      listeners.remove(listener);
+    }
+  }
+
+  /** The number of live instance nodes read so far, for tests of incremental re-sync. */
+  long getInstanceReads() {
+    LiveInstanceWatcher watcher = liveInstanceWatcher.get();
+    return watcher == null ? 0 : watcher.getInstanceReads();
+  }
+
+  /** The open ZooKeeper connections, for tests that expire their sessions. */
+  List<HelixServiceZkConnection> getConnections() {
+    List<HelixServiceZkConnection> connections = new ArrayList<>();
+    if (participant.get() != null) {
+      connections.add(participant.get());
+    }
+    if (spectator.get() != null) {
+      connections.add(spectator.get());
+    }
+    return connections;
+  }
+
+  private HelixServiceZkConnection createConnection(String instanceName, InstanceType instanceType) {
+    return new HelixServiceZkConnection(
+        clusterName,
+        instanceName,
+        instanceType,
+        zkAddress,
+        reconnectBaseDelayMillis,
+        reconnectMaxDelayMillis);
+  }
+
+  /**
+   * Watches live instances incrementally: the child list of the live instances path, plus the data
+   * of each live instance. A change to one instance only reads that instance, rather than every
+   * live instance as Helix's {@code LiveInstanceChangeListener} does.
+   *
+   * <p>All callbacks run on the connection's ZooKeeper event thread. After a new session, ZkClient
+   * re-fires every watch on that thread, which happens after the connection's reconnect delay.
+   */
+  private class LiveInstanceWatcher implements IZkChildListener, IZkDataListener, IZkStateListener {
+    private final ZkClient zkClient;
+    private final String liveInstancesPath;
+    private final String instanceConfigsPath;
+    private final Map<String, ServiceInstance> watchedInstances; // null while a node has no address
+    private boolean resyncPending;
+    private long instanceReads;
+
+    LiveInstanceWatcher(HelixServiceZkConnection connection) {
+      this.zkClient = connection.getZkClient();
+      this.liveInstancesPath = connection.getHelixDataAccessor().keyBuilder().liveInstances().getPath();
+      this.instanceConfigsPath = connection.getHelixDataAccessor().keyBuilder().instanceConfigs().getPath();
+      this.watchedInstances = new TreeMap<>();
+    }
+
+    synchronized void start() {
+      zkClient.subscribeStateChanges(this);
+      update(zkClient.subscribeChildChanges(liveInstancesPath, this), false);
+    }
+
+    synchronized long getInstanceReads() {
+      return instanceReads;
+    }
+
+    @Override
+    public synchronized void handleChildChange(String parentPath, List<String> children) {
+      boolean resync = resyncPending;
+      resyncPending = false;
+      update(children, resync);
+    }
+
+    @Override
+    public synchronized void handleDataChange(String dataPath, Object data) {
+      String instanceName = getInstanceName(dataPath);
+      if (watchedInstances.containsKey(instanceName)) {
+        watchedInstances.put(instanceName, toServiceInstance(instanceName, (ZNRecord) data));
+        publish(false);
+      }
+    }
+
+    @Override
+    public synchronized void handleDataDeleted(String dataPath) {
+      String instanceName = getInstanceName(dataPath);
+      if (watchedInstances.containsKey(instanceName)) {
+        // Not live anymore, the child change will stop watching it
+        watchedInstances.put(instanceName, null);
+        publish(false);
+      }
+    }
+
+    @Override
+    public void handleStateChanged(Watcher.Event.KeeperState state) {
+      // NOP
+    }
+
+    @Override
+    public synchronized void handleNewSession() {
+      // Watches are re-fired after this, starting with the child list
+      resyncPending = true;
+    }
+
+    @Override
+    public void handleSessionEstablishmentError(Throwable error) {
+      LOG.error("Could not establish a new ZooKeeper session", error);
+    }
+
+    private void update(List<String> children, boolean resync) {
+      Set<String> liveNames = children == null ? Collections.<String>emptySet() : new HashSet<>(children);
+
+      Iterator<String> itr = watchedInstances.keySet().iterator();
+      while (itr.hasNext()) {
+        String instanceName = itr.next();
+        if (!liveNames.contains(instanceName)) {
+          zkClient.unsubscribeDataChanges(getPath(instanceName), this);
+          itr.remove();
+        }
+      }
+
+      // Only read the instances that were added
+      for (String instanceName : liveNames) {
+        if (!watchedInstances.containsKey(instanceName)) {
+          String path = getPath(instanceName);
+          zkClient.subscribeDataChanges(path, this);
+          ZNRecord record = zkClient.readData(path, true);
+          instanceReads++;
+          watchedInstances.put(instanceName, toServiceInstance(instanceName, record));
+        }
+      }
+
+      publish(resync);
+    }
+
+    private void publish(boolean resync) {
+      List<ServiceInstance> instances = new ArrayList<>(watchedInstances.size());
+      for (ServiceInstance instance : watchedInstances.values()) {
+        if (instance != null) {
+          instances.add(instance);
+        }
+      }
+      liveInstances.set(instances);
+      notifyListeners(resync);
+    }
+
+    private ServiceInstance toServiceInstance(String instanceName, ZNRecord record) {
+      if (record == null) {
+        return null;
+      }
+      String hostName = record.getSimpleField(HOST_NAME_FIELD);
+      String port = record.getSimpleField(PORT_FIELD);
+      if (hostName == null || port == null) {
+        // e.g. a participant from before the address was published, during a rolling upgrade
+        ZNRecord configRecord = zkClient.readData(instanceConfigsPath + "/" + instanceName, true);
+        if (configRecord != null) {
+          InstanceConfig instanceConfig = new InstanceConfig(configRecord);
+          hostName = instanceConfig.getHostName();
+          port = instanceConfig.getPort();
+        }
+        if (hostName == null || port == null) {
+          LOG.warn("Live instance {} has no service address or instance config", instanceName);
+          return null;
+        }
+        LOG.warn("Live instance {} has no service address, using {}:{} from its instance config",
+            instanceName, hostName, port);
+      }
+      return new ServiceInstance(
+          instanceName,
+          hostName,
+          Integer.valueOf(port),
+          !"false".equals(record.getSimpleField(ENABLED_FIELD)));
+    }
+
+    private String getPath(String instanceName) {
+      return liveInstancesPath + "/" + instanceName;
+    }
+
+    private String getInstanceName(String path) {
+      return path.substring(path.lastIndexOf('/') + 1);
+    }
+  }
+
+  private void notifyListeners(final boolean resync) {
+    ExecutorService executor = listenerExecutor;
+    if (executor == null) {
+      return; // stopped
+    }
+
+    // Read the state when the notification is delivered, so listeners never go back in time
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          List<ServiceInstance> instances = liveInstances.get();
+          if (instances == null) {
+            return; // not initialized yet
+          }
+          for (ServiceRegistryListener listener : listeners) {
+            listener.onLiveInstancesChange(instances, resync);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Stopped concurrently, so there is no one left to notify
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.discovery;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministically selects a stable subset of instances for one client.
+ *
+ * <p>Given a client key, uses rendezvous (highest random weight) hashing: every instance is scored
+ * by hashing it together with the client key, and the client keeps the {@code subsetSize} highest
+ * scores. The same client always picks the same subset from the same membership, and adding or
+ * removing one instance changes at most one member of any client's subset. But clients pick
+ * independent subsets, so the number of clients per instance is only even on average: with 2000
+ * instances, 500 clients and subsets of 20, instances get 5 clients on average, yet 16 get none and
+ * the busiest gets 14.
+ *
+ * <p>Given a client index instead, where clients are numbered 0 to {@code numClients - 1}, uses
+ * the deterministic subsetting from Google's SRE book: clients are split into rounds of
+ * {@code numInstances / subsetSize}, each round shuffles the instances with its own seed and
+ * hands every client in it a disjoint slice. Every instance then gets the same number of clients,
+ * give or take one round, at the cost of reshuffling many subsets whenever membership changes.
+ */
+public class HelixServiceSubsetter {
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final String clientKey;
+  private final int clientIndex;
+  private final int subsetSize;
+
+  public HelixServiceSubsetter(String clientKey, int subsetSize) {
+    this(clientKey, -1, subsetSize);
+    if (clientKey == null) {
+      throw new NullPointerException("clientKey");
+    }
+  }
+
+  public HelixServiceSubsetter(int clientIndex, int subsetSize) {
+    this(null, clientIndex, subsetSize);
+    if (clientIndex < 0) {
+      throw new IllegalArgumentException("clientIndex must not be negative: " + clientIndex);
+    }
+  }
+
+  private HelixServiceSubsetter(String clientKey, int clientIndex, int subsetSize) {
+    if (subsetSize <= 0) {
+      throw new IllegalArgumentException("subsetSize must be positive: " + subsetSize);
+    }
+    this.clientKey = clientKey;
+    this.clientIndex = clientIndex;
+    this.subsetSize = subsetSize;
+  }
+
+  /** The client key, or null if this subsetter uses a client index. */
+  public String getClientKey() {
+    return clientKey;
+  }
+
+  /** The client index, or -1 if this subsetter uses a client key. */
+  public int getClientIndex() {
+    return clientIndex;
+  }
+
+  public int getSubsetSize() {
+    return subsetSize;
+  }
+
+  /**
+   * @param instanceNames All live instance names
+   * @return The instance names in this client's subset
+   */
+  public List<String> select(Collection<String> instanceNames) {
+    return clientKey != null ? selectByKey(instanceNames) : selectByIndex(instanceNames);
+  }
+
+  private List<String> selectByKey(Collection<String> instanceNames) {
+    List<WeightedInstance> weighted = new ArrayList<>(instanceNames.size());
+    for (String instanceName : instanceNames) {
+      weighted.add(new WeightedInstance(instanceName, weight(clientKey, instanceName)));
+    }
+
+    Collections.sort(weighted, new Comparator<WeightedInstance>() {
+      @Override
+      public int compare(WeightedInstance a, WeightedInstance b) {
+        int cmp = Long.compare(b.weight, a.weight);
+        return cmp != 0 ? cmp : a.instanceName.compareTo(b.instanceName);
+      }
+    });
+
+    int size = Math.min(subsetSize, weighted.size());
+    List<String> subset = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      subset.add(weighted.get(i).instanceName);
+    }
+    return subset;
+  }
+
+  private List<String> selectByIndex(Collection<String> instanceNames) {
+    // Sort first, so every client shuffles the same list
+    List<String> instances = new ArrayList<>(instanceNames);
+    Collections.sort(instances);
+    if (instances.size() <= subsetSize) {
+      return instances;
+    }
+
+    int subsetCount = instances.size() / subsetSize;
+    int round = clientIndex / subsetCount;
+    int subsetId = clientIndex % subsetCount;
+
+    // java.util.Random's sequence is fixed by its spec, so all clients agree on the shuffle
+    Collections.shuffle(instances, new Random(round));
+    int start = subsetId * subsetSize;
+    return new ArrayList<>(instances.subList(start, start + subsetSize));
+  }
+
+  static long weight(String clientKey, String instanceName) {
+    long hash = FNV_OFFSET_BASIS;
+    hash = update(hash, clientKey.getBytes(StandardCharsets.UTF_8));
+    hash = (hash ^ 0xff) * FNV_PRIME; // separator, so ("ab", "c") != ("a", "bc")
+    hash = update(hash, instanceName.getBytes(StandardCharsets.UTF_8));
+
+    // Finalize (MurmurHash3 fmix64) so nearby keys spread over the whole range
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  private static long update(long hash, byte[] bytes) {
+    for (byte b : bytes) {
+      hash ^= b & 0xff;
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+
+  private static class WeightedInstance {
+    private final String instanceName;
+    private final long weight;
+
+    WeightedInstance(String instanceName, long weight) {
+      this.instanceName = instanceName;
+      this.weight = weight;
+    }
+  }
+}
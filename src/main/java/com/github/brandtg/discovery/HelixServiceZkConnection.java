@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.discovery;
+
+import org.apache.helix.InstanceType;
+import org.apache.helix.manager.zk.ZKHelixManager;
+import org.apache.helix.manager.zk.ZkClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+
+/**
+ * A {@link ZKHelixManager} that waits a jittered, exponentially increasing delay before
+ * re-establishing its live instance and listeners after ZooKeeper session expiry.
+ *
+ * <p>A network blip can expire the sessions of every client at once. Without a delay, all of
+ * them re-register and re-read the cluster at the same moment, which can overload ZooKeeper and
+ * expire the sessions again. Until the delay has passed, listeners keep the last state they saw.
+ */
+public class HelixServiceZkConnection extends ZKHelixManager {
+  private static final Logger LOG = LoggerFactory.getLogger(HelixServiceZkConnection.class);
+  private static final Random RANDOM = new Random();
+
+  public static final long DEFAULT_BASE_DELAY_MILLIS = 1000;
+  public static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+  private boolean hasSession;
+  private int attempt;
+  private long lastNewSessionMillis = -1;
+
+  public HelixServiceZkConnection(String clusterName,
+                                  String instanceName,
+                                  InstanceType instanceType,
+                                  String zkAddress,
+                                  long baseDelayMillis,
+                                  long maxDelayMillis) {
+    super(clusterName, instanceName, instanceType, zkAddress);
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+  }
+
+  @Override
+  public void handleNewSession() throws Exception {
+    // Also called for the first session on connect, which should not wait
+    if (!hasSession) {
+      hasSession = true;
+      super.handleNewSession();
+      return;
+    }
+
+    long nowMillis = System.currentTimeMillis();
+
+    // Back off further only while sessions keep expiring
+    if (lastNewSessionMillis >= 0 && nowMillis - lastNewSessionMillis < 2 * maxDelayMillis) {
+      attempt++;
+    } else {
+      attempt = 0;
+    }
+    lastNewSessionMillis = nowMillis;
+
+    long delayMillis = getDelayMillis(attempt, baseDelayMillis, maxDelayMillis, RANDOM);
+    LOG.warn("ZooKeeper session expired, re-syncing in {} ms (attempt {})", delayMillis, attempt);
+    Thread.sleep(delayMillis);
+
+    super.handleNewSession();
+  }
+
+  /** The underlying ZooKeeper client, for watches Helix does not offer and tests that expire its session. */
+  ZkClient getZkClient() {
+    return _zkclient;
+  }
+
+  /**
+   * Returns a uniformly random delay in [0, min(maxDelayMillis, baseDelayMillis * 2^attempt)).
+   */
+  static long getDelayMillis(int attempt, long baseDelayMillis, long maxDelayMillis, Random random) {
+    long boundMillis = maxDelayMillis;
+    if (attempt < 62 && baseDelayMillis <= (maxDelayMillis >> attempt)) {
+      boundMillis = baseDelayMillis << attempt;
+    }
+    if (boundMillis <= 0) {
+      return 0;
+    }
+    return (long) (random.nextDouble() * boundMillis);
+  }
+}
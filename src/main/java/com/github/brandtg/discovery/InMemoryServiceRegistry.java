@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.discovery;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ServiceRegistry} that keeps its state in memory, for tests and benchmarks.
+ *
+ * <p>Registries created with the same {@link Cluster} see each other, as if connected to the same
+ * Helix cluster. Like a Helix live instance, each registration publishes its own address, and an
+ * instance is only live, and only disabled, until the registry that registered it stops. Listeners
+ * get a snapshot when added and after every change, on a thread owned by their registry.
+ */
+public class InMemoryServiceRegistry implements ServiceRegistry {
+  private final Cluster cluster;
+  private final List<ServiceRegistryListener> listeners;
+  private volatile ExecutorService executor;
+  private String registeredInstanceName;
+
+  public InMemoryServiceRegistry(Cluster cluster) {
+    this.cluster = cluster;
+    this.listeners = new CopyOnWriteArrayList<>();
+  }
+
+  @Override
+  public synchronized void start() throws Exception {
+    if (executor == null) {
+      executor = Executors.newSingleThreadExecutor();
+      cluster.registries.add(this);
+    }
+  }
+
+  @Override
+  public synchronized void stop() throws Exception {
+    if (executor != null) {
+      cluster.registries.remove(this);
+      if (registeredInstanceName != null) {
+        cluster.setLive(registeredInstanceName, false);
+        registeredInstanceName = null;
+      }
+      executor.shutdown();
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+      executor = null;
+    }
+  }
+
+  @Override
+  public synchronized void register(String instanceName, String hostName, int port) throws Exception {
+    checkStarted();
+    if (registeredInstanceName != null) {
+      throw new IllegalStateException("An instance is already registered: " + registeredInstanceName);
+    }
+    cluster.register(instanceName, hostName, port);
+    registeredInstanceName = instanceName;
+  }
+
+  @Override
+  public synchronized void setEnabled(String instanceName, boolean enabled) throws Exception {
+    checkStarted();
+    if (!instanceName.equals(registeredInstanceName)) {
+      throw new IllegalStateException("Instance is not registered through this registry: " + instanceName);
+    }
+    cluster.setEnabled(instanceName, enabled);
+  }
+
+  @Override
+  public synchronized void addListener(final ServiceRegistryListener listener) throws Exception {
+    checkStarted();
+    listeners.add(listener);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        listener.onLiveInstancesChange(cluster.getLiveInstances(), false);
+      }
+    });
+  }
+
+  @Override
+  public void removeListener(ServiceRegistryListener listener) throws Exception {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Simulates ZooKeeper session expiry: the registered instance briefly stops being live (keeping
+   * its enabled state), then listeners get a resync snapshot.
+   */
+  public synchronized void expireSession() throws Exception {
+    checkStarted();
+    if (registeredInstanceName != null) {
+      cluster.setLive(registeredInstanceName, false);
+      cluster.setLive(registeredInstanceName, true);
+    }
+    notifyListeners(true);
+  }
+
+  private void notifyListeners(final boolean resync) {
+    ExecutorService executor = this.executor;
+    if (executor == null || listeners.isEmpty()) {
+      return;
+    }
+
+    // Like a ZooKeeper watch, read the state when the notification is delivered
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          List<ServiceInstance> liveInstances = cluster.getLiveInstances();
+          for (ServiceRegistryListener listener : listeners) {
+            listener.onLiveInstancesChange(liveInstances, resync);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Stopped concurrently, so there is no one left to notify
+    }
+  }
+
+  private synchronized void checkStarted() {
+    if (executor == null) {
+      throw new IllegalStateException("Registry is not started");
+    }
+  }
+
+  /**
+   * The shared state of one in-memory cluster.
+   */
+  public static class Cluster {
+    private final Map<String, ServiceInstance> instances = new LinkedHashMap<>();
+    private final Set<String> live = new LinkedHashSet<>();
+    private final Set<String> disabled = new HashSet<>();
+    private final List<InMemoryServiceRegistry> registries = new CopyOnWriteArrayList<>();
+
+    public synchronized List<ServiceInstance> getLiveInstances() {
+      List<ServiceInstance> liveInstances = new ArrayList<>(live.size());
+      for (String instanceName : live) {
+        ServiceInstance instance = instances.get(instanceName);
+        liveInstances.add(new ServiceInstance(
+            instanceName, instance.getHostName(), instance.getPort(), !disabled.contains(instanceName)));
+      }
+      return liveInstances;
+    }
+
+    private void register(String instanceName, String hostName, int port) {
+      synchronized (this) {
+        if (live.contains(instanceName)) {
+          throw new IllegalStateException("Instance is already live: " + instanceName);
+        }
+        instances.put(instanceName, new ServiceInstance(instanceName, hostName, port, true));
+        disabled.remove(instanceName);
+        live.add(instanceName);
+      }
+      changed();
+    }
+
+    private void setLive(String instanceName, boolean isLive) {
+      synchronized (this) {
+        if (isLive) {
+          if (!live.add(instanceName)) {
+            throw new IllegalStateException("Instance is already live: " + instanceName);
+          }
+        } else {
+          live.remove(instanceName);
+        }
+      }
+      changed();
+    }
+
+    private void setEnabled(String instanceName, boolean enabled) {
+      synchronized (this) {
+        if (enabled) {
+          disabled.remove(instanceName);
+        } else {
+          disabled.add(instanceName);
+        }
+      }
+      changed();
+    }
+
+    private void changed() {
+      for (InMemoryServiceRegistry registry : registries) {
+        registry.notifyListeners(false);
+      }
+    }
+  }
+}
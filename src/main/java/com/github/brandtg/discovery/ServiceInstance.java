@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.discovery;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A service instance as seen through a {@link ServiceRegistry}.
+ */
+public class ServiceInstance {
+  private final String instanceName;
+  private final String hostName;
+  private final int port;
+  private final boolean enabled;
+
+  public ServiceInstance(String instanceName, String hostName, int port, boolean enabled) {
+    this.instanceName = instanceName;
+    this.hostName = hostName;
+    this.port = port;
+    this.enabled = enabled;
+  }
+
+  public String getInstanceName() {
+    return instanceName;
+  }
+
+  public String getHostName() {
+    return hostName;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  /** False while the instance is disabled (e.g. shedding load) and should not be routed to. */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public InetSocketAddress getAddress() {
+    return new InetSocketAddress(hostName, port);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof ServiceInstance)) {
+      return false;
+    }
+    ServiceInstance other = (ServiceInstance) o;
+    return instanceName.equals(other.instanceName)
+        && hostName.equals(other.hostName)
+        && port == other.port
+        && enabled == other.enabled;
+  }
+
+  @Override
+  public int hashCode() {
+    return instanceName.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s(%s:%d%s)", instanceName, hostName, port, enabled ? "" : ", disabled");
+  }
+}
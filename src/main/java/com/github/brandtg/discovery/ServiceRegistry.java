@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.discovery;
+
+/**
+ * The backend that {@link HelixServiceDiscoveryBundle} registers with, and that
+ * {@link HelixServiceDiscoverer} watches.
+ *
+ * <p>{@link HelixServiceRegistry} is the default. {@link InMemoryServiceRegistry} has the same
+ * semantics without ZooKeeper, for tests and benchmarks.
+ *
+ * <p>Whoever creates a registry starts and stops it. A {@link HelixServiceDiscoverer} given a
+ * registry only adds and removes its listener, so the registry can be shared, e.g. with an
+ * instance registered through it.
+ */
+public interface ServiceRegistry {
+  void start() throws Exception;
+
+  /** Stops the registry. An instance registered through it stops being live. */
+  void stop() throws Exception;
+
+  /**
+   * Adds this instance to the cluster if it is not present, and makes it live and enabled until
+   * {@link #stop()}.
+   */
+  void register(String instanceName, String hostName, int port) throws Exception;
+
+  /**
+   * Enables or disables the instance registered through this registry, without changing whether
+   * it is live. This lasts only while the instance is live, so an instance that dies while
+   * disabled is enabled again when it re-registers.
+   */
+  void setEnabled(String instanceName, boolean enabled) throws Exception;
+
+  /** Adds a listener, which is called with the current snapshot and on every change after. */
+  void addListener(ServiceRegistryListener listener) throws Exception;
+
+  /** Removes a listener. It is not called again once this returns, except by a call already in progress. */
+  void removeListener(ServiceRegistryListener listener) throws Exception;
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.discovery;
+
+import java.util.List;
+
+/**
+ * Receives snapshots of the live instances in a {@link ServiceRegistry}.
+ */
+public interface ServiceRegistryListener {
+  /**
+   * Called with the full set of live instances when the listener is added, and again after
+   * every change. Calls for one listener are serial, on a thread owned by the registry.
+   *
+   * @param liveInstances All live instances, including disabled ones
+   * @param resync        True if this is the first snapshot after the registry lost and
+   *                      re-established its session, so instances that are still
+   *                      re-registering may be missing
+   */
+  void onLiveInstancesChange(List<ServiceInstance> liveInstances, boolean resync);
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.discovery;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import junit.framework.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class TestHelixServiceLoadShedder {
+  private static final String INSTANCE_NAME = "localhost_12000";
+  private static final long LATENCY_WINDOW_MILLIS = 100;
+
+  private HelixServiceLoadSheddingConfiguration config;
+  private HelixServiceLoadShedder loadShedder;
+
+  private MetricRegistry metricRegistry;
+  private Timer requestTimer;
+  private InMemoryServiceRegistry.Cluster cluster;
+  private InMemoryServiceRegistry serviceRegistry;
+
+  @BeforeMethod
+  public void beforeMethod() throws Exception {
+    config = new HelixServiceLoadSheddingConfiguration();
+    config.setMinStateDurationMillis(1000);
+    config.setMaxQueueSize(100);
+    config.setRecoverQueueSize(10);
+    config.setMaxLatencyMillis(500);
+    config.setRecoverLatencyMillis(100);
+    config.setMaxGcTimeRatio(0.5);
+    config.setRecoverGcTimeRatio(0.1);
+    config.setGcWindowMillis(10000);
+    config.setLatencyWindowMillis(LATENCY_WINDOW_MILLIS);
+    metricRegistry = new MetricRegistry();
+    loadShedder = new HelixServiceLoadShedder(config, metricRegistry);
+
+    // Only latency, from the timer the load shedder registered, drives run()
+    requestTimer = metricRegistry.timer(config.getLatencyTimerName());
+    cluster = new InMemoryServiceRegistry.Cluster();
+    serviceRegistry = new InMemoryServiceRegistry(cluster);
+    serviceRegistry.start();
+  }
+
+  @AfterMethod
+  public void afterMethod() throws Exception {
+    serviceRegistry.stop();
+  }
+
+  @Test
+  public void testShedOnQueueSize() throws Exception {
+    Assert.assertFalse(loadShedder.update(50, 50, 0, 0));
+    Assert.assertTrue(loadShedder.update(101, 0, 0, 1000));
+    Assert.assertTrue(loadShedder.isShedding());
+  }
+
+  @Test
+  public void testShedOnLatency() throws Exception {
+    Assert.assertTrue(loadShedder.update(0, 501, 0, 0));
+    Assert.assertTrue(loadShedder.isShedding());
+  }
+
+  @Test
+  public void testShedOnGcTimeRatio() throws Exception {
+    Assert.assertTrue(loadShedder.update(0, 0, 0.6, 0));
+    Assert.assertTrue(loadShedder.isShedding());
+  }
+
+  @Test
+  public void testGcPauseSpreadOverWindow() throws Exception {
+    Assert.assertEquals(loadShedder.getGcTimeRatio(0, 0), 0.0);
+
+    // One 300 ms pause is spread over the 10 s window, rather than being 30% of one check interval
+    Assert.assertEquals(loadShedder.getGcTimeRatio(1000, 300), 0.03, 1e-9);
+    for (long t = 2000; t <= 10000; t += 1000) {
+      Assert.assertEquals(loadShedder.getGcTimeRatio(t, 300), 0.03, 1e-9);
+    }
+
+    // Forgotten once it leaves the window
+    Assert.assertEquals(loadShedder.getGcTimeRatio(11000, 300), 0.0, 1e-9);
+  }
+
+  @Test
+  public void testSustainedGc() throws Exception {
+    double ratio = 0;
+    for (long t = 0; t <= 20000; t += 1000) {
+      ratio = loadShedder.getGcTimeRatio(t, t * 6 / 10);
+    }
+    Assert.assertEquals(ratio, 0.6, 1e-9);
+    Assert.assertTrue(loadShedder.update(0, 0, ratio, 20000));
+  }
+
+  @Test
+  public void testHysteresis() throws Exception {
+    Assert.assertTrue(loadShedder.update(101, 0, 0, 0));
+
+    // Below the max threshold, but above the recover threshold
+    Assert.assertFalse(loadShedder.update(50, 0, 0, 5000));
+    Assert.assertFalse(loadShedder.update(0, 200, 0, 6000));
+    Assert.assertFalse(loadShedder.update(0, 0, 0.2, 7000));
+    Assert.assertTrue(loadShedder.isShedding());
+
+    // All signals recovered
+    Assert.assertTrue(loadShedder.update(10, 100, 0.1, 8000));
+    Assert.assertFalse(loadShedder.isShedding());
+  }
+
+  @Test
+  public void testMinStateDuration() throws Exception {
+    Assert.assertTrue(loadShedder.update(101, 0, 0, 0));
+    Assert.assertFalse(loadShedder.update(0, 0, 0, 999));
+    Assert.assertTrue(loadShedder.isShedding());
+    Assert.assertTrue(loadShedder.update(0, 0, 0, 1000));
+    Assert.assertFalse(loadShedder.update(101, 0, 0, 1999));
+    Assert.assertFalse(loadShedder.isShedding());
+  }
+
+  @Test
+  public void testDisabledSignal() throws Exception {
+    config.setMaxLatencyMillis(0);
+    Assert.assertFalse(loadShedder.update(0, 10000, 0, 0));
+    Assert.assertTrue(loadShedder.update(101, 10000, 0, 0));
+    Assert.assertTrue(loadShedder.update(0, 10000, 0, 1000));
+  }
+
+  @Test
+  public void testRunDisablesAndReEnables() throws Exception {
+    serviceRegistry.register(INSTANCE_NAME, "localhost", 12000);
+    startLoadShedder();
+
+    recordRequests(1000);
+    loadShedder.run();
+    Assert.assertTrue(loadShedder.isShedding());
+    Assert.assertFalse(isEnabled());
+
+    // Slow requests from before the window do not count
+    Thread.sleep(LATENCY_WINDOW_MILLIS * 2);
+    recordRequests(1);
+    loadShedder.run();
+    Assert.assertFalse(loadShedder.isShedding());
+    Assert.assertTrue(isEnabled());
+  }
+
+  @Test
+  public void testRunRollsBackOnFailure() throws Exception {
+    // Not registered yet, so the registry rejects setEnabled
+    startLoadShedder();
+    recordRequests(1000);
+    loadShedder.run();
+    Assert.assertFalse(loadShedder.isShedding());
+
+    // Retried on the next check, without waiting for the min state duration
+    serviceRegistry.register(INSTANCE_NAME, "localhost", 12000);
+    recordRequests(1000);
+    loadShedder.run();
+    Assert.assertTrue(loadShedder.isShedding());
+    Assert.assertFalse(isEnabled());
+  }
+
+  @Test
+  public void testStopReEnables() throws Exception {
+    serviceRegistry.register(INSTANCE_NAME, "localhost", 12000);
+    startLoadShedder();
+    recordRequests(1000);
+    loadShedder.run();
+    Assert.assertFalse(isEnabled());
+
+    loadShedder.stop();
+    Assert.assertFalse(loadShedder.isShedding());
+    Assert.assertTrue(isEnabled());
+  }
+
+  private void startLoadShedder() {
+    config.setMaxGcTimeRatio(0);
+    config.setMinStateDurationMillis(0);
+    config.setCheckIntervalMillis(TimeUnit.HOURS.toMillis(1)); // only the test calls run()
+    loadShedder.start(serviceRegistry, INSTANCE_NAME);
+  }
+
+  private void recordRequests(long latencyMillis) {
+    for (int i = 0; i < 10; i++) {
+      requestTimer.update(latencyMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private boolean isEnabled() {
+    List<ServiceInstance> liveInstances = cluster.getLiveInstances();
+    Assert.assertEquals(liveInstances.size(), 1);
+    return liveInstances.get(0).isEnabled();
+  }
+}
@@ -0,0 +1,389 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.discovery;
+
+import junit.framework.Assert;
+import org.I0Itec.zkclient.IDefaultNameSpace;
+import org.I0Itec.zkclient.ZkClient;
+import org.I0Itec.zkclient.ZkConnection;
+import org.I0Itec.zkclient.ZkServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.helix.HelixManager;
+import org.apache.helix.HelixManagerFactory;
+import org.apache.helix.InstanceType;
+import org.apache.helix.model.InstanceConfig;
+import org.apache.helix.tools.ClusterSetup;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestHelixServiceRegistry {
+  // A listener that records every snapshot, and the thread it was delivered on
+  private static class RecordingListener implements ServiceRegistryListener {
+    private final List<List<ServiceInstance>> snapshots = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+
+    @Override
+    public synchronized void onLiveInstancesChange(List<ServiceInstance> liveInstances, boolean resync) {
+      snapshots.add(liveInstances);
+      threads.add(Thread.currentThread());
+    }
+
+    synchronized List<ServiceInstance> getLastSnapshot() {
+      return snapshots.isEmpty() ? null : snapshots.get(snapshots.size() - 1);
+    }
+
+    synchronized List<Thread> getThreads() {
+      return new ArrayList<>(threads);
+    }
+  }
+
+  // Constants
+  private int zkPort = 50001;
+  private String zkAddress = String.format("localhost:%d", zkPort);
+  private String clusterName = "TEST_REGISTRY_CLUSTER";
+
+  private File zkRoot;
+  private ZkServer zkServer;
+  private List<HelixServiceRegistry> registries;
+
+  @BeforeClass
+  public void beforeClass() {
+    zkRoot = new File(System.getProperty("java.io.tmpdir"), TestHelixServiceRegistry.class.getSimpleName());
+    zkServer = new ZkServer(new File(zkRoot, "data").getAbsolutePath(),
+        new File(zkRoot, "log").getAbsolutePath(),
+        new IDefaultNameSpace() {
+          @Override
+          public void createDefaultNameSpace(ZkClient zkClient) {
+            // NOP
+          }
+        }, zkPort);
+    zkServer.start();
+  }
+
+  @AfterClass
+  public void afterClass() throws Exception {
+    zkServer.shutdown();
+    FileUtils.forceDelete(zkRoot);
+  }
+
+  @BeforeMethod
+  public void beforeMethod() throws Exception {
+    new ClusterSetup(zkAddress).addCluster(clusterName, true);
+    registries = new ArrayList<>();
+  }
+
+  @AfterMethod
+  public void afterMethod() throws Exception {
+    for (HelixServiceRegistry registry : registries) {
+      registry.stop();
+    }
+  }
+
+  @Test
+  public void testListenersNotifiedOnRegistryThread() throws Exception {
+    HelixServiceRegistry participant = startRegistry(clusterName);
+    participant.register("localhost_12000", "localhost", 12000);
+
+    HelixServiceRegistry spectator = startRegistry(clusterName);
+    RecordingListener first = new RecordingListener();
+    RecordingListener second = new RecordingListener();
+    spectator.addListener(first);
+    waitForLiveInstances(first, 1);
+    spectator.addListener(second);
+    waitForLiveInstances(second, 1);
+
+    // Every snapshot, including each listener's initial one, comes from the same registry thread
+    List<Thread> threads = first.getThreads();
+    threads.addAll(second.getThreads());
+    for (Thread thread : threads) {
+      Assert.assertEquals(thread, threads.get(0));
+    }
+    Assert.assertFalse(threads.get(0).equals(Thread.currentThread()));
+  }
+
+  @Test
+  public void testRegisterAfterFailure() throws Exception {
+    String missingClusterName = "MISSING_CLUSTER";
+    HelixServiceRegistry registry = startRegistry(missingClusterName);
+    try {
+      registry.register("localhost_12000", "localhost", 12000);
+      Assert.fail("Registered in a cluster that does not exist");
+    } catch (Exception e) {
+      // Expected
+    }
+    Assert.assertTrue(registry.getConnections().isEmpty());
+
+    // Once the cluster exists, registering again works
+    new ClusterSetup(zkAddress).addCluster(missingClusterName, true);
+    registry.register("localhost_12000", "localhost", 12000);
+    Assert.assertEquals(registry.getConnections().size(), 1);
+  }
+
+  @Test
+  public void testDisabledOnlyWhileLive() throws Exception {
+    HelixServiceRegistry spectator = startRegistry(clusterName);
+    RecordingListener listener = new RecordingListener();
+    spectator.addListener(listener);
+
+    HelixServiceRegistry participant = startRegistry(clusterName);
+    participant.register("localhost_12000", "localhost", 12000);
+    waitForEnabled(listener, "localhost_12000", true);
+
+    // Spectators see the change on the live instance they already watch
+    participant.setEnabled("localhost_12000", false);
+    waitForEnabled(listener, "localhost_12000", false);
+
+    // The instance dies without enabling itself again, then restarts
+    participant.stop();
+    waitForLiveInstances(listener, 0);
+    HelixServiceRegistry restarted = startRegistry(clusterName);
+    restarted.register("localhost_12000", "localhost", 12000);
+    waitForEnabled(listener, "localhost_12000", true);
+  }
+
+  @Test
+  public void testOnlyChangedInstancesRead() throws Exception {
+    HelixServiceRegistry spectator = startRegistry(clusterName);
+    RecordingListener listener = new RecordingListener();
+    spectator.addListener(listener);
+
+    List<HelixServiceRegistry> participants = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      HelixServiceRegistry participant = startRegistry(clusterName);
+      participant.register("localhost_" + (12000 + i), "localhost", 12000 + i);
+      participants.add(participant);
+    }
+    waitForLiveInstances(listener, 3);
+    Assert.assertEquals(spectator.getInstanceReads(), 3);
+
+    // A data change is delivered without reading the child list again
+    participants.get(0).setEnabled("localhost_12000", false);
+    waitForEnabled(listener, "localhost_12000", false);
+    Assert.assertEquals(spectator.getInstanceReads(), 3);
+
+    // One instance restarting only reads that instance
+    participants.get(1).stop();
+    waitForLiveInstances(listener, 2);
+    HelixServiceRegistry restarted = startRegistry(clusterName);
+    restarted.register("localhost_12001", "localhost", 12001);
+    waitForLiveInstances(listener, 3);
+    Assert.assertEquals(spectator.getInstanceReads(), 4);
+  }
+
+  @Test
+  public void testSetEnabledWithoutLiveInstance() throws Exception {
+    HelixServiceRegistry spectator = startRegistry(clusterName);
+    RecordingListener listener = new RecordingListener();
+    spectator.addListener(listener);
+
+    HelixServiceRegistry participant = startRegistry(clusterName);
+    participant.register("localhost_12000", "localhost", 12000);
+    waitForEnabled(listener, "localhost_12000", true);
+    HelixServiceZkConnection connection = participant.getConnections().get(0);
+
+    // As between session expiry and re-registering: the flag does not create a bare live instance
+    String liveInstancePath = String.format("/%s/LIVEINSTANCES/localhost_12000", clusterName);
+    connection.getZkClient().delete(liveInstancePath);
+    waitForLiveInstances(listener, 0);
+    participant.setEnabled("localhost_12000", false);
+    Assert.assertFalse(connection.getZkClient().exists(liveInstancePath));
+
+    // Re-registering carries it instead
+    expireSession(connection);
+    waitForEnabled(listener, "localhost_12000", false);
+  }
+
+  @Test
+  public void testAddressFromInstanceConfig() throws Exception {
+    HelixServiceRegistry spectator = startRegistry(clusterName);
+    RecordingListener listener = new RecordingListener();
+    spectator.addListener(listener);
+
+    // A participant that does not publish its address in the live instance, e.g. an older version
+    InstanceConfig instanceConfig = new InstanceConfig("localhost_12000");
+    instanceConfig.setHostName("localhost");
+    instanceConfig.setPort("12000");
+    new ClusterSetup(zkAddress).getClusterManagementTool().addInstance(clusterName, instanceConfig);
+    HelixManager participant = HelixManagerFactory.getZKHelixManager(
+        clusterName, "localhost_12000", InstanceType.PARTICIPANT, zkAddress);
+    participant.connect();
+    try {
+      waitForLiveInstances(listener, 1);
+      ServiceInstance instance = listener.getLastSnapshot().get(0);
+      Assert.assertEquals(instance.getAddress(), new InetSocketAddress("localhost", 12000));
+      Assert.assertTrue(instance.isEnabled());
+    } finally {
+      participant.disconnect();
+    }
+  }
+
+  @Test
+  public void testSetEnabledOnlyForRegisteredInstance() throws Exception {
+    HelixServiceRegistry participant = startRegistry(clusterName);
+    participant.register("localhost_12000", "localhost", 12000);
+    try {
+      participant.setEnabled("localhost_12001", false);
+      Assert.fail("Disabled an instance registered elsewhere");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testSessionExpiry() throws Exception {
+    int numServices = 4;
+    HelixServiceDiscoveryConfiguration config = new HelixServiceDiscoveryConfiguration();
+    config.setZkAddress(zkAddress);
+    config.setClusterName(clusterName);
+    config.setReconnectBaseDelayMillis(2000);
+    config.setReconnectMaxDelayMillis(4000);
+
+    List<HelixServiceRegistry> participants = new ArrayList<>();
+    for (int i = 0; i < numServices; i++) {
+      HelixServiceRegistry participant = startRegistry(config);
+      participant.register("localhost_" + (12000 + i), "localhost", 12000 + i);
+      participants.add(participant);
+    }
+
+    HelixServiceRegistry discovererRegistry = startRegistry(config);
+    HelixServiceDiscoverer discoverer = new HelixServiceDiscoverer(discovererRegistry, config);
+    discoverer.start();
+    ZkClient zkClient = new ZkClient(zkAddress);
+    try {
+      long startTimeMillis = System.currentTimeMillis();
+      while (discoverer.getServices() == null || discoverer.getServices().size() < numServices) {
+        Assert.assertTrue(System.currentTimeMillis() - startTimeMillis < 10000);
+        Thread.sleep(10);
+      }
+      List<InetSocketAddress> services = discoverer.getServices();
+
+      // Expire every session, as a network partition longer than the session timeout would. The
+      // discoverer goes first, since while partitioned it would not see the others' expiry.
+      for (HelixServiceZkConnection connection : discovererRegistry.getConnections()) {
+        expireSession(connection);
+      }
+      for (HelixServiceRegistry participant : participants) {
+        for (HelixServiceZkConnection connection : participant.getConnections()) {
+          expireSession(connection);
+        }
+      }
+      long expiredMillis = System.currentTimeMillis();
+      String liveInstancesPath = String.format("/%s/LIVEINSTANCES", clusterName);
+      Assert.assertTrue(zkClient.countChildren(liveInstancesPath) < numServices);
+
+      // Participants come back after their random delay, rather than all at once. The discoverer
+      // keeps serving its snapshot meanwhile, and through its own re-sync.
+      while (zkClient.countChildren(liveInstancesPath) < numServices) {
+        Assert.assertEquals(new HashSet<>(discoverer.getServices()), new HashSet<>(services));
+        Assert.assertTrue(System.currentTimeMillis() - expiredMillis < config.getReconnectBaseDelayMillis() + 10000);
+        Thread.sleep(10);
+      }
+      Assert.assertTrue(System.currentTimeMillis() - expiredMillis >= 200);
+      Assert.assertEquals(new HashSet<>(discoverer.getServices()), new HashSet<>(services));
+
+      // Instances that do not come back are dropped after the grace period
+      participants.get(0).stop();
+      startTimeMillis = System.currentTimeMillis();
+      while (discoverer.getServices().size() == numServices) {
+        Assert.assertTrue(System.currentTimeMillis() - startTimeMillis
+            < config.getReconnectBaseDelayMillis() + config.getReconnectMaxDelayMillis() + 10000);
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(discoverer.getServices().size(), numServices - 1);
+    } finally {
+      zkClient.close();
+      discoverer.stop();
+    }
+  }
+
+  private HelixServiceRegistry startRegistry(String clusterName) throws Exception {
+    HelixServiceDiscoveryConfiguration config = new HelixServiceDiscoveryConfiguration();
+    config.setZkAddress(zkAddress);
+    config.setClusterName(clusterName);
+    return startRegistry(config);
+  }
+
+  private HelixServiceRegistry startRegistry(HelixServiceDiscoveryConfiguration config) throws Exception {
+    HelixServiceRegistry registry = new HelixServiceRegistry(
+        config.getZkAddress(),
+        config.getClusterName(),
+        config.getReconnectBaseDelayMillis(),
+        config.getReconnectMaxDelayMillis());
+    registry.start();
+    registries.add(registry);
+    return registry;
+  }
+
+  // Connects with the same session, then closes it, which expires it for the original client
+  private void expireSession(HelixServiceZkConnection connection) throws Exception {
+    ZooKeeper zookeeper = ((ZkConnection) connection.getZkClient().getConnection()).getZookeeper();
+    final CountDownLatch connected = new CountDownLatch(1);
+    ZooKeeper other = new ZooKeeper(zkAddress, 10000, new Watcher() {
+      @Override
+      public void process(WatchedEvent event) {
+        if (event.getState() == Watcher.Event.KeeperState.SyncConnected) {
+          connected.countDown();
+        }
+      }
+    }, zookeeper.getSessionId(), zookeeper.getSessionPasswd());
+    Assert.assertTrue(connected.await(10, TimeUnit.SECONDS));
+    other.close();
+  }
+
+  private static void waitForLiveInstances(RecordingListener listener, int expectedInstances) throws Exception {
+    long startTimeMillis = System.currentTimeMillis();
+    do {
+      List<ServiceInstance> liveInstances = listener.getLastSnapshot();
+      if (liveInstances != null && liveInstances.size() == expectedInstances) {
+        return;
+      }
+      Thread.sleep(10);
+    } while (System.currentTimeMillis() - startTimeMillis < 10000);
+
+    Assert.fail("Timed out while waiting for live instances to become " + expectedInstances);
+  }
+
+  private static void waitForEnabled(RecordingListener listener, String instanceName, boolean enabled) throws Exception {
+    long startTimeMillis = System.currentTimeMillis();
+    do {
+      List<ServiceInstance> liveInstances = listener.getLastSnapshot();
+      if (liveInstances != null) {
+        for (ServiceInstance instance : liveInstances) {
+          if (instance.getInstanceName().equals(instanceName) && instance.isEnabled() == enabled) {
+            return;
+          }
+        }
+      }
+      Thread.sleep(10);
+    } while (System.currentTimeMillis() - startTimeMillis < 10000);
+
+    Assert.fail("Timed out while waiting for " + instanceName + " to become " + (enabled ? "enabled" : "disabled"));
+  }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.discovery;
+
+import junit.framework.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class TestHelixServiceSubsetter {
+  private static final int NUM_INSTANCES = 2000;
+  private static final int NUM_CLIENTS = 500;
+  private static final int SUBSET_SIZE = 20;
+
+  private static List<String> instances(int numInstances) {
+    List<String> instances = new ArrayList<>();
+    for (int i = 0; i < numInstances; i++) {
+      instances.add(String.format("host-%d.example.com_%d", i, 8080));
+    }
+    return instances;
+  }
+
+  @Test
+  public void testStableSubset() throws Exception {
+    List<String> instances = instances(100);
+    List<String> subset = new HelixServiceSubsetter("client-0", 10).select(instances);
+    Assert.assertEquals(subset.size(), 10);
+
+    // Same client, same membership (in any order) gives the same subset
+    List<String> shuffled = new ArrayList<>(instances);
+    Collections.shuffle(shuffled);
+    Assert.assertEquals(new HelixServiceSubsetter("client-0", 10).select(shuffled), subset);
+  }
+
+  @Test
+  public void testSmallCluster() throws Exception {
+    List<String> instances = instances(3);
+    List<String> subset = new HelixServiceSubsetter("client-0", 10).select(instances);
+    Assert.assertEquals(new HashSet<>(subset), new HashSet<>(instances));
+  }
+
+  @Test
+  public void testMinimalChurn() throws Exception {
+    List<String> instances = instances(100);
+    for (int i = 0; i < 50; i++) {
+      HelixServiceSubsetter subsetter = new HelixServiceSubsetter("client-" + i, 10);
+      Set<String> before = new HashSet<>(subsetter.select(instances));
+
+      // Removing an instance outside the subset changes nothing
+      List<String> removedOther = new ArrayList<>(instances);
+      for (String instance : instances) {
+        if (!before.contains(instance)) {
+          removedOther.remove(instance);
+          break;
+        }
+      }
+      Assert.assertEquals(new HashSet<>(subsetter.select(removedOther)), before);
+
+      // Removing an instance in the subset replaces only that instance
+      List<String> removedMember = new ArrayList<>(instances);
+      removedMember.remove(before.iterator().next());
+      Set<String> after = new HashSet<>(subsetter.select(removedMember));
+      after.retainAll(before);
+      Assert.assertEquals(after.size(), 9);
+    }
+  }
+
+  @Test
+  public void testRendezvousSpread() throws Exception {
+    List<String> instances = instances(NUM_INSTANCES);
+    int[] counts = new int[NUM_INSTANCES];
+    for (int i = 0; i < NUM_CLIENTS; i++) {
+      for (String instance : new HelixServiceSubsetter("client-" + i, SUBSET_SIZE).select(instances)) {
+        counts[instances.indexOf(instance)]++;
+      }
+    }
+
+    // Each client picks independently, so counts spread around the mean of 5 like a Poisson
+    // distribution, whose variance is also the mean: some instances get no clients, and the busiest
+    // get around three times the mean
+    double mean = (double) NUM_CLIENTS * SUBSET_SIZE / NUM_INSTANCES;
+    int min = Integer.MAX_VALUE;
+    int max = 0;
+    int total = 0;
+    double squaredDeviations = 0;
+    for (int count : counts) {
+      min = Math.min(min, count);
+      max = Math.max(max, count);
+      total += count;
+      squaredDeviations += (count - mean) * (count - mean);
+    }
+    Assert.assertEquals(total, NUM_CLIENTS * SUBSET_SIZE);
+    Assert.assertEquals(squaredDeviations / NUM_INSTANCES, mean, 0.2 * mean);
+    Assert.assertTrue(min < mean / 2);
+    Assert.assertTrue(max > 2 * mean && max < 4 * mean);
+  }
+
+  @Test
+  public void testIndexedEvenSpread() throws Exception {
+    List<String> instances = instances(NUM_INSTANCES);
+    int[] counts = new int[NUM_INSTANCES];
+    for (int i = 0; i < NUM_CLIENTS; i++) {
+      List<String> subset = new HelixServiceSubsetter(i, SUBSET_SIZE).select(instances);
+      Assert.assertEquals(new HashSet<>(subset).size(), SUBSET_SIZE);
+      for (String instance : subset) {
+        counts[instances.indexOf(instance)]++;
+      }
+    }
+
+    // 500 clients make 5 full rounds over 100 disjoint subsets, so every instance gets exactly 5
+    for (int count : counts) {
+      Assert.assertEquals(count, NUM_CLIENTS * SUBSET_SIZE / NUM_INSTANCES);
+    }
+  }
+
+  @Test
+  public void testIndexedUnevenInstanceCount() throws Exception {
+    // 105 instances make 5 subsets of 20 per round, leaving out a different 5 in each round
+    int numInstances = 105;
+    List<String> instances = instances(numInstances);
+    int subsetsPerRound = numInstances / SUBSET_SIZE;
+    int numRounds = NUM_CLIENTS / subsetsPerRound;
+    int[] counts = new int[numInstances];
+    for (int round = 0; round < numRounds; round++) {
+      Set<String> roundInstances = new HashSet<>();
+      for (int i = round * subsetsPerRound; i < (round + 1) * subsetsPerRound; i++) {
+        List<String> subset = new HelixServiceSubsetter(i, SUBSET_SIZE).select(instances);
+        Assert.assertEquals(subset.size(), SUBSET_SIZE);
+        roundInstances.addAll(subset);
+        for (String instance : subset) {
+          counts[instances.indexOf(instance)]++;
+        }
+      }
+
+      // Subsets within a round are disjoint
+      Assert.assertEquals(roundInstances.size(), subsetsPerRound * SUBSET_SIZE);
+    }
+
+    // So no instance gets more than one client per round, and the ones left out vary by round
+    double mean = (double) NUM_CLIENTS * SUBSET_SIZE / numInstances;
+    for (int count : counts) {
+      Assert.assertTrue(count <= numRounds);
+      Assert.assertTrue(count >= 0.8 * mean);
+    }
+  }
+
+  @Test
+  public void testIndexedChurn() throws Exception {
+    List<String> instances = instances(NUM_INSTANCES);
+    List<String> removed = new ArrayList<>(instances);
+    removed.remove(0);
+
+    int rendezvousChanged = 0;
+    int rendezvousHadRemoved = 0;
+    int indexedChanged = 0;
+    int indexedReplaced = 0;
+    for (int i = 0; i < NUM_CLIENTS; i++) {
+      HelixServiceSubsetter rendezvous = new HelixServiceSubsetter("client-" + i, SUBSET_SIZE);
+      Set<String> before = new HashSet<>(rendezvous.select(instances));
+      if (!before.equals(new HashSet<>(rendezvous.select(removed)))) {
+        rendezvousChanged++;
+      }
+      if (before.contains(instances.get(0))) {
+        rendezvousHadRemoved++;
+      }
+
+      HelixServiceSubsetter indexed = new HelixServiceSubsetter(i, SUBSET_SIZE);
+      before = new HashSet<>(indexed.select(instances));
+      Set<String> kept = new HashSet<>(indexed.select(removed));
+      kept.retainAll(before);
+      if (kept.size() < SUBSET_SIZE) {
+        indexedChanged++;
+        indexedReplaced += SUBSET_SIZE - kept.size();
+      }
+    }
+
+    // Removing one instance only changes the rendezvous subsets that contained it, but reshuffles
+    // almost every member of every indexed subset
+    Assert.assertEquals(rendezvousChanged, rendezvousHadRemoved);
+    Assert.assertEquals(indexedChanged, NUM_CLIENTS);
+    Assert.assertTrue(indexedReplaced > 0.9 * NUM_CLIENTS * SUBSET_SIZE);
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.discovery;
+
+import junit.framework.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+public class TestHelixServiceZkConnection {
+  @Test
+  public void testDelayBounds() throws Exception {
+    Random random = new Random(0);
+    for (int i = 0; i < 1000; i++) {
+      long delay = HelixServiceZkConnection.getDelayMillis(0, 1000, 30000, random);
+      Assert.assertTrue(delay >= 0 && delay < 1000);
+
+      delay = HelixServiceZkConnection.getDelayMillis(3, 1000, 30000, random);
+      Assert.assertTrue(delay >= 0 && delay < 8000);
+
+      // Capped at the max, even for very large attempts
+      delay = HelixServiceZkConnection.getDelayMillis(100, 1000, 30000, random);
+      Assert.assertTrue(delay >= 0 && delay < 30000);
+    }
+  }
+
+  @Test
+  public void testDelayJitter() throws Exception {
+    Random random = new Random(0);
+    long minDelay = Long.MAX_VALUE;
+    long maxDelay = Long.MIN_VALUE;
+    for (int i = 0; i < 1000; i++) {
+      long delay = HelixServiceZkConnection.getDelayMillis(0, 1000, 30000, random);
+      minDelay = Math.min(minDelay, delay);
+      maxDelay = Math.max(maxDelay, delay);
+    }
+
+    // Spread over the whole window, rather than all clients at once
+    Assert.assertTrue(minDelay < 100);
+    Assert.assertTrue(maxDelay > 900);
+  }
+
+  @Test
+  public void testNoDelay() throws Exception {
+    Assert.assertEquals(HelixServiceZkConnection.getDelayMillis(0, 0, 30000, new Random()), 0);
+  }
+}
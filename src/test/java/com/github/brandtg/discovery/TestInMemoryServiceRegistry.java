@@ -0,0 +1,372 @@
+/**
+ * Copyright (C) 2015 Greg Brandt (brandt.greg@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.brandtg.discovery;
+
+import junit.framework.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+public class TestInMemoryServiceRegistry {
+  // Counts notifications. Added after a discoverer's listener, on the same registry, it is only
+  // notified once the discoverer has handled the same notification.
+  private static class CountingListener implements ServiceRegistryListener {
+    private int notifications;
+
+    @Override
+    public synchronized void onLiveInstancesChange(List<ServiceInstance> liveInstances, boolean resync) {
+      notifications++;
+    }
+
+    synchronized int getNotifications() {
+      return notifications;
+    }
+  }
+
+  private int numServices = 3;
+  private int basePort = 30000;
+
+  private InMemoryServiceRegistry.Cluster cluster;
+  private List<InMemoryServiceRegistry> participants;
+  private List<InMemoryServiceRegistry> registries;
+  private InMemoryServiceRegistry discovererRegistry;
+  private HelixServiceDiscoverer serviceDiscoverer;
+
+  @BeforeMethod
+  public void beforeMethod() throws Exception {
+    cluster = new InMemoryServiceRegistry.Cluster();
+
+    participants = new ArrayList<>();
+    for (int i = 0; i < numServices; i++) {
+      InMemoryServiceRegistry participant = new InMemoryServiceRegistry(cluster);
+      participant.start();
+      participant.register(instanceName(i), "localhost", basePort + i);
+      participants.add(participant);
+    }
+
+    registries = new ArrayList<>();
+    discovererRegistry = startRegistry();
+    serviceDiscoverer = new HelixServiceDiscoverer(discovererRegistry);
+    serviceDiscoverer.start();
+  }
+
+  @AfterMethod
+  public void afterMethod() throws Exception {
+    serviceDiscoverer.stop();
+    for (InMemoryServiceRegistry participant : participants) {
+      participant.stop();
+    }
+    for (InMemoryServiceRegistry registry : registries) {
+      registry.stop();
+    }
+  }
+
+  @Test
+  public void testServiceDiscovery() throws Exception {
+    waitForServices(serviceDiscoverer, numServices);
+    Assert.assertEquals(new HashSet<>(serviceDiscoverer.getServices()), new HashSet<>(addresses(0, 1, 2)));
+
+    // Stop one, and ensure that we have one less
+    participants.get(0).stop();
+    waitForServices(serviceDiscoverer, numServices - 1);
+    Assert.assertEquals(new HashSet<>(serviceDiscoverer.getServices()), new HashSet<>(addresses(1, 2)));
+
+    // Restart it
+    participants.get(0).start();
+    participants.get(0).register(instanceName(0), "localhost", basePort);
+    waitForServices(serviceDiscoverer, numServices);
+  }
+
+  @Test
+  public void testRegisterNewAddress() throws Exception {
+    waitForServices(serviceDiscoverer, numServices);
+
+    // Restarted on another port, e.g. a new container with the same instance name
+    participants.get(0).stop();
+    waitForServices(serviceDiscoverer, numServices - 1);
+    participants.get(0).start();
+    participants.get(0).register(instanceName(0), "localhost", basePort + numServices);
+    waitForServices(serviceDiscoverer, numServices);
+    Assert.assertEquals(new HashSet<>(serviceDiscoverer.getServices()),
+        new HashSet<>(addresses(numServices, 1, 2)));
+  }
+
+  @Test
+  public void testDisabledInstance() throws Exception {
+    waitForServices(serviceDiscoverer, numServices);
+
+    participants.get(0).setEnabled(instanceName(0), false);
+    waitForServices(serviceDiscoverer, numServices - 1);
+    Assert.assertEquals(new HashSet<>(serviceDiscoverer.getServices()), new HashSet<>(addresses(1, 2)));
+
+    participants.get(0).setEnabled(instanceName(0), true);
+    waitForServices(serviceDiscoverer, numServices);
+  }
+
+  @Test
+  public void testPanicBelowMinEnabledFraction() throws Exception {
+    waitForServices(serviceDiscoverer, numServices);
+
+    // 2 of 3 enabled is above the default fraction
+    participants.get(0).setEnabled(instanceName(0), false);
+    waitForServices(serviceDiscoverer, numServices - 1);
+
+    // 1 of 3 is not, so the disabled instances are served too
+    CountingListener listener = addCountingListener(discovererRegistry);
+    participants.get(1).setEnabled(instanceName(1), false);
+    waitForNotifications(listener, 2);
+    Assert.assertEquals(new HashSet<>(serviceDiscoverer.getServices()), new HashSet<>(addresses(0, 1, 2)));
+
+    // Recovering one is enough to stop panicking
+    participants.get(1).setEnabled(instanceName(1), true);
+    waitForServices(serviceDiscoverer, numServices - 1);
+    Assert.assertEquals(new HashSet<>(serviceDiscoverer.getServices()), new HashSet<>(addresses(1, 2)));
+  }
+
+  @Test
+  public void testPanicWhenAllDisabled() throws Exception {
+    HelixServiceDiscoveryConfiguration config = new HelixServiceDiscoveryConfiguration();
+    config.setMinEnabledFraction(0);
+    HelixServiceDiscoverer panicDiscoverer = new HelixServiceDiscoverer(startRegistry(), config);
+    panicDiscoverer.start();
+    try {
+      waitForServices(panicDiscoverer, numServices);
+
+      participants.get(0).setEnabled(instanceName(0), false);
+      participants.get(1).setEnabled(instanceName(1), false);
+      waitForServices(panicDiscoverer, 1);
+
+      // Never left with no instance to route to
+      participants.get(2).setEnabled(instanceName(2), false);
+      waitForServices(panicDiscoverer, numServices);
+      Assert.assertNotNull(panicDiscoverer.getRandomService());
+    } finally {
+      panicDiscoverer.stop();
+    }
+  }
+
+  @Test
+  public void testRestartAfterDisabled() throws Exception {
+    waitForServices(serviceDiscoverer, numServices);
+
+    // Dies while disabled, e.g. killed while shedding load
+    participants.get(0).setEnabled(instanceName(0), false);
+    waitForServices(serviceDiscoverer, numServices - 1);
+    participants.get(0).stop();
+
+    // Comes back enabled
+    participants.get(0).start();
+    participants.get(0).register(instanceName(0), "localhost", basePort);
+    waitForServices(serviceDiscoverer, numServices);
+  }
+
+  @Test
+  public void testDisabledAcrossSessionExpiry() throws Exception {
+    participants.get(0).setEnabled(instanceName(0), false);
+    waitForServices(serviceDiscoverer, numServices - 1);
+
+    CountingListener listener = addCountingListener(discovererRegistry);
+    participants.get(0).expireSession();
+    waitForNotifications(listener, 3); // not live, then live again
+    Assert.assertEquals(new HashSet<>(serviceDiscoverer.getServices()), new HashSet<>(addresses(1, 2)));
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void testSetEnabledForOtherInstance() throws Exception {
+    participants.get(0).setEnabled(instanceName(1), false);
+  }
+
+  @Test
+  public void testSubsetting() throws Exception {
+    HelixServiceDiscoverer subsetDiscoverer = new HelixServiceDiscoverer(
+        startRegistry(), "client-0", numServices - 1);
+    subsetDiscoverer.start();
+    try {
+      waitForServices(subsetDiscoverer, numServices - 1);
+    } finally {
+      subsetDiscoverer.stop();
+    }
+  }
+
+  @Test
+  public void testIndexedSubsetKeptWhenDisabled() throws Exception {
+    HelixServiceDiscoverer subsetDiscoverer = new HelixServiceDiscoverer(
+        startRegistry(), new HelixServiceDiscoveryConfiguration(), 0, numServices - 1);
+    subsetDiscoverer.start();
+    try {
+      waitForServices(subsetDiscoverer, numServices - 1);
+      List<String> subset = new HelixServiceSubsetter(0, numServices - 1)
+          .select(Arrays.asList(instanceName(0), instanceName(1), instanceName(2)));
+
+      // A disabled member is skipped, rather than the subset being re-drawn from the enabled instances
+      participants.get(instanceIndex(subset.get(0))).setEnabled(subset.get(0), false);
+      waitForServices(subsetDiscoverer, numServices - 2);
+      Assert.assertEquals(subsetDiscoverer.getServices(), addresses(instanceIndex(subset.get(1))));
+
+      // Panic mode applies within the subset
+      participants.get(instanceIndex(subset.get(1))).setEnabled(subset.get(1), false);
+      waitForServices(subsetDiscoverer, numServices - 1);
+      Assert.assertEquals(new HashSet<>(subsetDiscoverer.getServices()),
+          new HashSet<>(addresses(instanceIndex(subset.get(0)), instanceIndex(subset.get(1)))));
+    } finally {
+      subsetDiscoverer.stop();
+    }
+  }
+
+  @Test
+  public void testResyncRetainsSnapshot() throws Exception {
+    waitForServices(serviceDiscoverer, numServices);
+
+    // After the discoverer's session expires, an instance that has not re-registered yet is kept
+    CountingListener listener = addCountingListener(discovererRegistry);
+    discovererRegistry.expireSession();
+    participants.get(0).stop();
+    waitForNotifications(listener, 3);
+    Assert.assertEquals(new HashSet<>(serviceDiscoverer.getServices()), new HashSet<>(addresses(0, 1, 2)));
+  }
+
+  @Test
+  public void testResyncGracePeriodFollowsMaxDelay() throws Exception {
+    HelixServiceDiscoveryConfiguration config = new HelixServiceDiscoveryConfiguration();
+    config.setReconnectMaxDelayMillis(1000);
+    InMemoryServiceRegistry registry = startRegistry();
+    HelixServiceDiscoverer resyncDiscoverer = new HelixServiceDiscoverer(registry, config);
+    resyncDiscoverer.start();
+    try {
+      waitForServices(resyncDiscoverer, numServices);
+
+      CountingListener listener = addCountingListener(registry);
+      registry.expireSession();
+      participants.get(0).stop();
+      waitForNotifications(listener, 3);
+      Assert.assertEquals(resyncDiscoverer.getServices().size(), numServices);
+
+      // Dropped once the grace period is over
+      waitForServices(resyncDiscoverer, numServices - 1);
+    } finally {
+      resyncDiscoverer.stop();
+    }
+  }
+
+  @Test
+  public void testMassRemovalRetainsSnapshot() throws Exception {
+    HelixServiceDiscoveryConfiguration config = new HelixServiceDiscoveryConfiguration();
+    config.setReconnectMaxDelayMillis(1000);
+    config.setMaxRemovedFraction(0.3);
+    InMemoryServiceRegistry registry = startRegistry();
+    HelixServiceDiscoverer retainingDiscoverer = new HelixServiceDiscoverer(registry, config);
+    retainingDiscoverer.start();
+    try {
+      waitForServices(retainingDiscoverer, numServices);
+
+      // The discoverer's own session survived, but 1 of 3 is more than the fraction
+      CountingListener listener = addCountingListener(registry);
+      participants.get(0).stop();
+      waitForNotifications(listener, 2);
+      Assert.assertEquals(retainingDiscoverer.getServices().size(), numServices);
+
+      // Dropped once the grace period is over
+      waitForServices(retainingDiscoverer, numServices - 1);
+    } finally {
+      retainingDiscoverer.stop();
+    }
+  }
+
+  @Test
+  public void testSharedRegistry() throws Exception {
+    // One registry both registers an instance and discovers the others
+    HelixServiceDiscoverer sharedDiscoverer = new HelixServiceDiscoverer(participants.get(0));
+    sharedDiscoverer.start();
+    waitForServices(sharedDiscoverer, numServices);
+
+    // Stopping the discoverer leaves the registry and its instance alone
+    sharedDiscoverer.stop();
+    participants.get(0).setEnabled(instanceName(0), false);
+    waitForServices(serviceDiscoverer, numServices - 1);
+    Assert.assertEquals(sharedDiscoverer.getServices().size(), numServices);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void testRegisterTwice() throws Exception {
+    participants.get(0).register(instanceName(numServices), "localhost", basePort + numServices);
+  }
+
+  private InMemoryServiceRegistry startRegistry() throws Exception {
+    InMemoryServiceRegistry registry = new InMemoryServiceRegistry(cluster);
+    registry.start();
+    registries.add(registry);
+    return registry;
+  }
+
+  private String instanceName(int i) {
+    return String.format("localhost_%d", basePort + i);
+  }
+
+  private int instanceIndex(String instanceName) {
+    return Integer.parseInt(instanceName.substring(instanceName.indexOf('_') + 1)) - basePort;
+  }
+
+  private InetSocketAddress address(int i) {
+    return new InetSocketAddress("localhost", basePort + i);
+  }
+
+  private List<InetSocketAddress> addresses(int... ids) {
+    List<InetSocketAddress> addresses = new ArrayList<>();
+    for (int i : ids) {
+      addresses.add(address(i));
+    }
+    return addresses;
+  }
+
+  // Counts the current snapshot as the first notification
+  private static CountingListener addCountingListener(InMemoryServiceRegistry registry) throws Exception {
+    CountingListener listener = new CountingListener();
+    registry.addListener(listener);
+    return listener;
+  }
+
+  private static void waitForServices(HelixServiceDiscoverer serviceDiscoverer, int expectedInstances)
+      throws Exception {
+    long startTimeMillis = System.currentTimeMillis();
+    do {
+      List<InetSocketAddress> services = serviceDiscoverer.getServices();
+      if (services != null && services.size() == expectedInstances) {
+        return;
+      }
+      Thread.sleep(10);
+    } while (System.currentTimeMillis() - startTimeMillis < 10000);
+
+    Assert.fail("Timed out while waiting for services to become " + expectedInstances);
+  }
+
+  private static void waitForNotifications(CountingListener listener, int expectedNotifications) throws Exception {
+    long startTimeMillis = System.currentTimeMillis();
+    do {
+      if (listener.getNotifications() >= expectedNotifications) {
+        return;
+      }
+      Thread.sleep(10);
+    } while (System.currentTimeMillis() - startTimeMillis < 10000);
+
+    Assert.fail("Timed out while waiting for " + expectedNotifications + " notifications");
+  }
+}